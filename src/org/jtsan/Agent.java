@@ -15,18 +15,24 @@
 
 package org.jtsan;
 
+import org.jtsan.detector.FastTrackDetector;
+import org.jtsan.writers.AsyncEventWriter;
 import org.jtsan.writers.BinAndStrEventWriter;
 import org.jtsan.writers.BinaryEventWriter;
+import org.jtsan.writers.BlockCompressor;
+import org.jtsan.writers.ChunkedEventWriter;
+import org.jtsan.writers.CompressingOutputStream;
 import org.jtsan.writers.EventWriter;
+import org.jtsan.writers.MappedEventWriter;
 import org.jtsan.writers.NoneEventWriter;
 import org.jtsan.writers.StringEventWriter;
+import org.jtsan.writers.SymbolFile;
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.LocalVariablesSorter;
+import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.util.TraceClassVisitor;
 
 import java.io.File;
@@ -37,8 +43,11 @@ import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Instruments all method bodies to intercept events: method entry, method exit, memory accesses,
@@ -54,6 +63,29 @@ public class Agent implements ClassFileTransformer {
 
   private static final String SAVE_TRANSFORMED_CLASSES = "stc";
 
+  // Option that drops events the transformer proves unneeded: field accesses
+  // repeating an earlier one in the same region of a method, and accesses to
+  // objects that do not escape the method. On by default, "0" disables it.
+  private static final String ELIDE_PREFIX = "elide=";
+
+  // Option that tracks call sites in a shadow stack per thread and writes
+  // SBLOCK_ENTER only when a callee enters from a new site, "1" enables it.
+  private static final String SHADOW_STACK_PREFIX = "shadowstack=";
+
+  // Option that samples field and array accesses: each method runs either
+  // fully instrumented or with sync events only, hot methods at the given
+  // rate in percent, "0.5" for example.
+  private static final String SAMPLE_PREFIX = "sample=";
+
+  // Option that samples field and array accesses by time: code runs fully
+  // instrumented in the given percent of periods of "pacems=" milliseconds,
+  // 10 by default, and with sync events only in the others.
+  private static final String PACE_PREFIX = "pace=";
+
+  private static final String PACE_PERIOD_PREFIX = "pacems=";
+
+  private static final long DEFAULT_PACE_PERIOD_MS = 10;
+
   // Option that enables retranslation of system classes.
   private static final String ENABLE_SYS_PREFIX = "sys=";
 
@@ -63,6 +95,69 @@ public class Agent implements ClassFileTransformer {
   private static final String WRITER_TYPE_NULL = "none";
   private static final String WRITER_TYPE_BINARY = "bin";
   private static final String WRITER_TYPE_BINSTRDEBUG = "binstr";
+  private static final String WRITER_TYPE_CHUNKED = "chunked";
+  private static final String WRITER_TYPE_MAPPED = "mmap";
+  private static final String WRITER_TYPE_COMPACT = "compact";
+  // Detects races in the JVM and writes reports instead of events.
+  private static final String WRITER_TYPE_DETECTOR = "detect";
+
+  // Size of a trace segment file in megabytes for the "mmap" writer.
+  private static final String SEGMENT_SIZE_PREFIX = "segsize=";
+
+  // Option that moves writing to a separate thread, the value is the policy
+  // for a full queue: "block", "drop" or "sample".
+  private static final String ASYNC_PREFIX = "async=";
+
+  // Number of events the asynchronous writer queue holds.
+  private static final String ASYNC_SIZE_PREFIX = "asyncsize=";
+
+  // Option that compresses the events file in blocks, the value is the
+  // compressor: "lz4" or "deflate".
+  private static final String COMPRESS_PREFIX = "compress=";
+
+  // How often buffered events are flushed to the events file, in
+  // milliseconds, 0 disables the periodic flush.
+  private static final String FLUSH_INTERVAL_PREFIX = "flushms=";
+
+  private static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
+  // File that receives code positions instead of the events file, events
+  // then carry only pcs.
+  private static final String SYMBOLS_PREFIX = "symbols=";
+
+  // Directory that keeps transformed classes between runs.
+  private static final String CACHE_PREFIX = "cache=";
+
+  // Option for agentmain: prefixes of the loaded classes to retransform,
+  // separated by ",", all of them by default. Passing "detach" instead of
+  // options restores the original classes and closes the trace.
+  private static final String ATTACH_PREFIX = "attach=";
+
+  private static final String DETACH = "detach";
+
+  // File with rules that disable and enable instrumentation of packages and
+  // classes at runtime, see ControlFile. Checked for changes every second.
+  private static final String CONTROL_PREFIX = "control=";
+
+  private static final long CONTROL_INTERVAL_MS = 1000;
+
+  // Option that finds the given number of methods writing most access
+  // events once the program warmed up for "hotms=" milliseconds, 10000 by
+  // default, and retransforms them with sync events only. Overloads of a
+  // method are counted apart.
+  private static final String HOT_PREFIX = "hot=";
+
+  private static final String HOT_WARMUP_PREFIX = "hotms=";
+
+  private static final long DEFAULT_HOT_WARMUP_MS = 10000;
+
+  // File with rules that include and exclude classes, methods and fields,
+  // see Scope.
+  private static final String SCOPE_PREFIX = "scope=";
+
+  // File with known benign races whose accesses get no events, see
+  // Suppressions.
+  private static final String SUPPRESS_PREFIX = "suppress=";
 
   // Default events file name.
   private static final String DEFAULT_EVENTS_FILE = "jtsan.events";
@@ -70,55 +165,105 @@ public class Agent implements ClassFileTransformer {
   // Path to directory where the agent saves transformed class files when flag 'stc' is set.
   private static final String TRANSFORMED_CLASSES_ROOT = "jtsan_transformed_classes";
 
-  // Ignore list to eliminate endless recursion.
-  private static String[] ignore = new String[]{
-      "org/jtsan/",
-      "sun",
-      
-      // Classes required by EventListener itself. Triggering events in these will
-      // cause endless recursion.
-      "java/io/PrintWriter",
-      "java/lang/AbstractStringBuilder",
-      "java/lang/Boolean",
-      "java/lang/Class",
-      "java/lang/Long",
-      "java/lang/String",
-      "java/lang/StringBuilder",
-      "java/lang/System",
-
-      // Exclusions to workaround HotSpot internal failures.
-      "java/io/",
-      "java/lang/Thread",
-      "java/lang/ref/",
-      "java/lang/reflect/",
-      "java/nio/",
-      "java/util/Arrays",
-
-      // Exclude some internals of java.util.concurrent to avoid false report.
-      // TimeUnit is enum. TimeUnit<init>:71 provoke false positive in tryLock test.
-      "java/util/concurrent/TimeUnit",
-      // ReentrantReadWriteLock$Sync provoke false positive in tryLock and readAndWriteLocks tests.
-      "java/util/concurrent/locks/ReentrantReadWriteLock",
-      // AbstractQueuedSynchronizer$ConditionObject provoke false positive in cyclicBarrier test.
-      "java/util/concurrent/locks/AbstractQueuedSynchronizer",
-  };
-
-  // A list of exceptions for the ignore list.
-  private static String[] noignore = new String[]{};
-
   // System methods to intercept.
   private static MethodMapping syncMethods = null;
 
-  private final CodePos codePos = new CodePos();
+  // The running agent, for agentmain to detach it.
+  private static Agent current;
+
+  // Shared by transformations running in parallel.
+  private final FieldFlags fieldFlags = new FieldFlags();
 
-  private final Set<String> volatileFields = new HashSet<String>();
+  private Scope scope = Scope.defaults();
+
+  private Suppressions suppressions = Suppressions.none();
 
   private String debugClassPrefix;
 
   private boolean writeTransformedClasses;
 
+  private ClassCache classCache;
+
+  private boolean elideAccesses = true;
+
+  private boolean sampleAccesses;
+
+  private boolean paceAccesses;
+
+  private Instrumentation instrumentation;
+
+  // Whether the agent was attached to a running JVM. Only the retransformed
+  // classes are instrumented then, with stack map frames since the JVM may
+  // verify them. Bootstrap classes are left alone, they cannot see the agent
+  // loaded by the system class loader.
+  private boolean attached;
+
+  // Names of the transformed classes, restored on detach.
+  private final Set<String> transformed =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private ControlFile control;
+
+  // Names of the classes left as they are because the control file disables
+  // them, transformed when it enables them again.
+  private final Set<String> disabled =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private EventWriter eventWriter;
+
+  private SymbolFile symbols;
+
+  // Closes the trace at exit or on detach.
+  private Thread closer;
+
+  // Background threads stopped on detach, null if not started.
+  private Thread flusher;
+
+  private Thread periods;
+
+  private Thread controlWatcher;
+
+  private Thread hotFinder;
+
+  private HotMethods hotMethods;
+
+  // Hot methods as "class.name", and their classes, stripped of access
+  // events.
+  private final Set<String> hotExcluded =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final Set<String> hotClasses =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
   public static void premain(String arg, Instrumentation instrumentation) {
+    start(arg, instrumentation, false);
+  }
+
+  /**
+   * Attaches the agent to a running JVM and retransforms the loaded classes
+   * selected by "attach=". With "detach" as the argument, detaches the
+   * running agent instead.
+   */
+  public static synchronized void agentmain(String arg, Instrumentation instrumentation) {
+    if (DETACH.equals(arg)) {
+      if (current == null) {
+        System.err.println("Java Agent: not attached");
+      } else {
+        current.detach();
+      }
+      return;
+    }
+    if (current != null) {
+      System.err.println("Java Agent: already attached, detach first");
+      return;
+    }
+    start(arg, instrumentation, true);
+  }
+
+  private static void start(String arg, Instrumentation instrumentation, boolean attach) {
     Agent agent = new Agent();
+    agent.instrumentation = instrumentation;
+    agent.attached = attach;
     syncMethods = new MethodMapping();
     Interceptors.init(syncMethods);
 
@@ -127,6 +272,24 @@ public class Agent implements ClassFileTransformer {
     boolean retransformSystem = false;
     // The events are written in string form by default.
     EventWriter eventWriter = new StringEventWriter();
+    AsyncEventWriter.Policy asyncPolicy = null;
+    int asyncSize = AsyncEventWriter.DEFAULT_CAPACITY;
+    boolean mappedOutput = false;
+    long segmentSize = MappedEventWriter.DEFAULT_SEGMENT_SIZE;
+    BlockCompressor compressor = null;
+    long flushInterval = DEFAULT_FLUSH_INTERVAL_MS;
+    String cacheDir = null;
+    String symbolsName = null;
+    boolean detector = false;
+    String[] attachPrefixes = null;
+    String scopeName = null;
+    String suppressName = null;
+    int hotCount = 0;
+    long hotWarmup = DEFAULT_HOT_WARMUP_MS;
+    double pacePercent = 0;
+    long pacePeriod = DEFAULT_PACE_PERIOD_MS;
+    // Options that change transformed classes.
+    StringBuilder config = new StringBuilder();
     if (arg != null) {
       String[] args = arg.split(":");
       for (int i = 0; i < args.length; i++) {
@@ -142,6 +305,50 @@ public class Agent implements ClassFileTransformer {
         if (idx != -1) {
           retransformSystem = "1".equals(args[i].substring(idx + ENABLE_SYS_PREFIX.length()));
         }
+        idx = args[i].lastIndexOf(ELIDE_PREFIX);
+        if (idx != -1) {
+          agent.elideAccesses = !"0".equals(args[i].substring(idx + ELIDE_PREFIX.length()));
+        }
+        idx = args[i].lastIndexOf(SHADOW_STACK_PREFIX);
+        if (idx != -1) {
+          EventListener.setShadowStack(
+              "1".equals(args[i].substring(idx + SHADOW_STACK_PREFIX.length())));
+        }
+        idx = args[i].lastIndexOf(SAMPLE_PREFIX);
+        if (idx != -1) {
+          double rate = Double.parseDouble(args[i].substring(idx + SAMPLE_PREFIX.length()));
+          // Negated, so that NaN is rejected too.
+          if (!(rate > 0 && rate <= 100)) {
+            System.err.println("Java Agent: " + SAMPLE_PREFIX + " takes a percent in (0, 100], not "
+                + args[i].substring(idx + SAMPLE_PREFIX.length()));
+            agent.abort(5);
+          }
+          Sampler.setRate(rate);
+          agent.sampleAccesses = true;
+        }
+        idx = args[i].lastIndexOf(PACE_PREFIX);
+        if (idx != -1) {
+          pacePercent = Double.parseDouble(args[i].substring(idx + PACE_PREFIX.length()));
+          if (!(pacePercent > 0 && pacePercent <= 100)) {
+            System.err.println("Java Agent: " + PACE_PREFIX + " takes a percent in (0, 100], not "
+                + args[i].substring(idx + PACE_PREFIX.length()));
+            agent.abort(5);
+          }
+          agent.paceAccesses = true;
+        }
+        idx = args[i].lastIndexOf(PACE_PERIOD_PREFIX);
+        if (idx != -1) {
+          pacePeriod = Long.parseLong(args[i].substring(idx + PACE_PERIOD_PREFIX.length()));
+          if (pacePeriod <= 0) {
+            System.err.println("Java Agent: " + PACE_PERIOD_PREFIX
+                + " takes a positive number of milliseconds, not " + pacePeriod);
+            agent.abort(5);
+          }
+        }
+        idx = args[i].lastIndexOf(ATTACH_PREFIX);
+        if (idx != -1) {
+          attachPrefixes = args[i].substring(idx + ATTACH_PREFIX.length()).split(",");
+        }
         idx = args[i].lastIndexOf(WRITER_PREFIX);
         if (idx != -1) {
           String writerName = args[i].substring(idx + WRITER_PREFIX.length());
@@ -153,7 +360,74 @@ public class Agent implements ClassFileTransformer {
             eventWriter = new BinaryEventWriter();
           } else if (writerName.equals(WRITER_TYPE_BINSTRDEBUG)) {
             eventWriter = new BinAndStrEventWriter();
+          } else if (writerName.equals(WRITER_TYPE_CHUNKED)) {
+            eventWriter = new ChunkedEventWriter();
+          } else if (writerName.equals(WRITER_TYPE_COMPACT)) {
+            eventWriter = new ChunkedEventWriter(true);
+          } else if (writerName.equals(WRITER_TYPE_DETECTOR)) {
+            eventWriter = new FastTrackDetector();
+            detector = true;
           }
+          // The mapped writer needs the final file name, created below.
+          mappedOutput = writerName.equals(WRITER_TYPE_MAPPED);
+        }
+        idx = args[i].lastIndexOf(SEGMENT_SIZE_PREFIX);
+        if (idx != -1) {
+          segmentSize = Long.parseLong(args[i].substring(idx + SEGMENT_SIZE_PREFIX.length()))
+              * 1024 * 1024;
+        }
+        idx = args[i].lastIndexOf(ASYNC_PREFIX);
+        if (idx != -1) {
+          String policyName = args[i].substring(idx + ASYNC_PREFIX.length());
+          asyncPolicy = AsyncEventWriter.Policy.valueOf(policyName.toUpperCase());
+        }
+        idx = args[i].lastIndexOf(ASYNC_SIZE_PREFIX);
+        if (idx != -1) {
+          asyncSize = Integer.parseInt(args[i].substring(idx + ASYNC_SIZE_PREFIX.length()));
+        }
+        idx = args[i].lastIndexOf(COMPRESS_PREFIX);
+        if (idx != -1) {
+          compressor = CompressingOutputStream.newCompressor(
+              args[i].substring(idx + COMPRESS_PREFIX.length()));
+        }
+        idx = args[i].lastIndexOf(FLUSH_INTERVAL_PREFIX);
+        if (idx != -1) {
+          flushInterval = Long.parseLong(args[i].substring(idx + FLUSH_INTERVAL_PREFIX.length()));
+        }
+        idx = args[i].lastIndexOf(CACHE_PREFIX);
+        if (idx != -1) {
+          cacheDir = args[i].substring(idx + CACHE_PREFIX.length());
+        } else if (args[i].lastIndexOf(LOGFILE_PREFIX) == -1
+            && args[i].lastIndexOf(SYMBOLS_PREFIX) == -1
+            && args[i].lastIndexOf(CONTROL_PREFIX) == -1
+            && args[i].lastIndexOf(SCOPE_PREFIX) == -1
+            && args[i].lastIndexOf(SUPPRESS_PREFIX) == -1) {
+          config.append(args[i]).append(':');
+        }
+        idx = args[i].lastIndexOf(HOT_PREFIX);
+        if (idx != -1) {
+          hotCount = Integer.parseInt(args[i].substring(idx + HOT_PREFIX.length()));
+        }
+        idx = args[i].lastIndexOf(HOT_WARMUP_PREFIX);
+        if (idx != -1) {
+          hotWarmup = Long.parseLong(args[i].substring(idx + HOT_WARMUP_PREFIX.length()));
+        }
+        idx = args[i].lastIndexOf(SCOPE_PREFIX);
+        if (idx != -1) {
+          scopeName = args[i].substring(idx + SCOPE_PREFIX.length());
+        }
+        idx = args[i].lastIndexOf(SUPPRESS_PREFIX);
+        if (idx != -1) {
+          suppressName = args[i].substring(idx + SUPPRESS_PREFIX.length());
+        }
+        idx = args[i].lastIndexOf(CONTROL_PREFIX);
+        if (idx != -1) {
+          agent.control =
+              new ControlFile(new File(args[i].substring(idx + CONTROL_PREFIX.length())));
+        }
+        idx = args[i].lastIndexOf(SYMBOLS_PREFIX);
+        if (idx != -1) {
+          symbolsName = args[i].substring(idx + SYMBOLS_PREFIX.length());
         }
         idx = args[i].lastIndexOf(SAVE_TRANSFORMED_CLASSES);
         if (idx != -1) {
@@ -166,27 +440,115 @@ public class Agent implements ClassFileTransformer {
       }
     }
 
+    if (scopeName != null) {
+      try {
+        agent.scope = Scope.load(new File(scopeName));
+      } catch (IOException e) {
+        System.err.println("Exception while reading file: " + scopeName + ", reason: " + e);
+        agent.abort(5);
+      }
+      // The file name does not matter to transformed classes, its rules do.
+      config.append(agent.scope.source());
+    }
+    if (suppressName != null) {
+      try {
+        agent.suppressions = Suppressions.load(new File(suppressName));
+      } catch (IOException e) {
+        System.err.println("Exception while reading file: " + suppressName + ", reason: " + e);
+        agent.abort(5);
+      }
+      config.append(agent.suppressions.source());
+      EventListener.setSuppressedFrames(agent.suppressions.hasFrames());
+      EventListener.setSuppressedArrays(agent.suppressions.hasArrays());
+    }
+    if (attach) {
+      // Classes are transformed with frames then.
+      config.append("agentmain:");
+    }
+    if (cacheDir != null) {
+      agent.classCache = ClassCache.open(new File(cacheDir), config.toString());
+    }
+
+    if (mappedOutput) {
+      if (fname.equals("-")) {
+        System.err.println("Java Agent: writer=" + WRITER_TYPE_MAPPED + " needs a logfile");
+        agent.abort(5);
+      }
+      eventWriter = new MappedEventWriter(fname, segmentSize);
+      if (compressor != null) {
+        System.err.println("Java Agent: mapped trace segments are not compressed");
+        compressor = null;
+      }
+    }
+    if (asyncPolicy != null) {
+      eventWriter = new AsyncEventWriter(eventWriter, asyncPolicy, asyncSize);
+    }
+
     // Initialize output stream for interceptors.
     EventListener.setEventWriter(eventWriter);
     try {
-      if (fname.equals("-")) {
-        eventWriter.setOutputStream(System.out);
+      if (mappedOutput) {
+        // Segment files are mapped by the writer itself.
+        eventWriter.setOutputStream(null);
       } else {
-        eventWriter.setOutputStream(new FileOutputStream(fname, false /* append */));
+        OutputStream out = fname.equals("-")
+            ? System.out : new FileOutputStream(fname, false /* append */);
+        if (compressor != null) {
+          out = new CompressingOutputStream(out, compressor);
+        }
+        eventWriter.setOutputStream(out);
       }
       System.err.println("Java Agent: appending threading events to file: " + fname);
     } catch (IOException e) {
       System.err.println("Exception while opening file: " + fname + ", reason: " + e);
-      System.exit(5);
+      agent.abort(5);
+    }
+    SymbolFile symbols = null;
+    try {
+      if (symbolsName != null) {
+        symbols = new SymbolFile(new FileOutputStream(symbolsName, false /* append */));
+        System.err.println("Java Agent: writing code positions to file: " + symbolsName);
+      } else if (detector) {
+        // Reports describe only a few pcs, the others are never formatted.
+        symbols = new SymbolFile(null);
+      }
+    } catch (IOException e) {
+      System.err.println("Exception while opening file: " + symbolsName + ", reason: " + e);
+      agent.abort(5);
+    }
+    EventListener.setSymbolFile(symbols);
+    agent.eventWriter = eventWriter;
+    agent.symbols = symbols;
+    agent.startWriterLifecycle(flushInterval);
+    if (agent.paceAccesses) {
+      agent.periods = Sampler.startPeriods(pacePercent, pacePeriod);
+    }
+
+    if (agent.control != null) {
+      try {
+        agent.control.reload();
+      } catch (IOException e) {
+        System.err.println("Java Agent: cannot read " + agent.control.file() + ": " + e);
+      }
+      agent.startControlWatcher();
+    }
+
+    if (hotCount > 0) {
+      agent.hotMethods = new HotMethods();
+      EventListener.setHotMethods(agent.hotMethods);
+      agent.startHotFinder(hotCount, hotWarmup);
     }
 
     // Enable the class transformation.
     EventListener.threadsInit();
     instrumentation.addTransformer(agent, true);
+    current = agent;
 
-    // Retransform most of the currently loaded system classes.
-    if (retransformSystem) {
-      for (Class c : instrumentation.getAllLoadedClasses()) {
+    if (attach) {
+      agent.retransformLoaded(attachPrefixes);
+    } else if (retransformSystem) {
+      // Retransform most of the currently loaded system classes.
+      for (Class<?> c : instrumentation.getAllLoadedClasses()) {
         if (!c.isInterface() && instrumentation.isModifiableClass(c)) {
           try {
             instrumentation.retransformClasses(c);
@@ -199,50 +561,287 @@ public class Agent implements ClassFileTransformer {
     }
   }
 
-  private boolean inIgnoreList(String className) {
-    for (String anIgnore : ignore) {
-      if (className.startsWith(anIgnore)) {
-        for (String aNoignore : noignore) {
-          if (className.startsWith(aNoignore)) {
-            return false;
+  // Gives up starting. Exits at premain, throws to leave a JVM the agent is
+  // attached to running without it.
+  private void abort(int status) {
+    if (attached) {
+      throw new IllegalStateException("Java Agent: cannot attach, see the log");
+    }
+    System.exit(status);
+  }
+
+  /**
+   * Retransforms the loaded classes whose names start with one of
+   * {@code prefixes}, or all of them if null. Bootstrap classes are left
+   * alone.
+   */
+  private void retransformLoaded(String[] prefixes) {
+    List<Class<?>> selected = new ArrayList<Class<?>>();
+    for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+      if (c.getClassLoader() == null || c.isInterface()
+          || !instrumentation.isModifiableClass(c)) {
+        continue;
+      }
+      String name = c.getName().replace('.', '/');
+      if (!scope.includesClass(name)) {
+        continue;
+      }
+      boolean matches = prefixes == null;
+      for (int i = 0; !matches && i < prefixes.length; i++) {
+        matches = name.startsWith(prefixes[i]);
+      }
+      if (matches) {
+        selected.add(c);
+      }
+    }
+    System.err.println("Java Agent: retransforming " + selected.size() + " loaded classes");
+    retransform(selected);
+  }
+
+  /**
+   * Stops transforming, restores the original bytes of the transformed
+   * classes and closes the trace. Frames that run instrumented code already
+   * finish it, their events are dropped.
+   */
+  private void detach() {
+    instrumentation.removeTransformer(this);
+    List<Class<?>> restored = new ArrayList<Class<?>>();
+    for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+      if (transformed.contains(c.getName().replace('.', '/'))
+          && instrumentation.isModifiableClass(c)) {
+        restored.add(c);
+      }
+    }
+    // Without the transformer the classes get their original bytes back.
+    retransform(restored);
+    EventListener.setEventWriter(new NoneEventWriter());
+    if (flusher != null) {
+      flusher.interrupt();
+    }
+    if (periods != null) {
+      periods.interrupt();
+    }
+    if (controlWatcher != null) {
+      controlWatcher.interrupt();
+    }
+    if (hotFinder != null) {
+      hotFinder.interrupt();
+    }
+    Runtime.getRuntime().removeShutdownHook(closer);
+    closer.run();
+    if (classCache != null) {
+      classCache.close();
+    }
+    current = null;
+    System.err.println("Java Agent: detached, restored " + restored.size() + " classes");
+  }
+
+  /**
+   * Checks the control file for changes and retransforms the classes whose
+   * rules changed: transformed classes it disables get their original bytes
+   * back, classes it enables again are transformed.
+   */
+  private void startControlWatcher() {
+    controlWatcher = new Thread("jtsan-control") {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(CONTROL_INTERVAL_MS);
+            applyControl();
+          }
+        } catch (InterruptedException e) {
+          // Exit.
+        }
+      }
+    };
+    controlWatcher.setDaemon(true);
+    controlWatcher.start();
+  }
+
+  private void applyControl() {
+    PrefixTrie<Boolean> previous;
+    try {
+      previous = control.reload();
+    } catch (IOException e) {
+      System.err.println("Java Agent: cannot read " + control.file() + ": " + e);
+      return;
+    }
+    if (previous == null) {
+      return;
+    }
+    List<Class<?>> changed = new ArrayList<Class<?>>();
+    for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+      String name = c.getName().replace('.', '/');
+      boolean wasDisabled = ControlFile.isDisabled(previous, name);
+      if (wasDisabled != control.isDisabled(name)
+          && (transformed.contains(name) || disabled.contains(name))
+          && instrumentation.isModifiableClass(c)) {
+        changed.add(c);
+      }
+    }
+    System.err.println("Java Agent: control file changed, retransforming "
+        + changed.size() + " classes");
+    retransform(changed);
+  }
+
+  /**
+   * Waits for the program to warm up, then retransforms the {@code count}
+   * methods with the most access events so far with sync events only.
+   */
+  private void startHotFinder(final int count, final long warmup) {
+    hotFinder = new Thread("jtsan-hot-methods") {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(warmup);
+        } catch (InterruptedException e) {
+          return;
+        }
+        List<String> hottest = hotMethods.hottest(count);
+        EventListener.setHotMethods(null);
+        hotMethods = null;
+        for (String method : hottest) {
+          hotClasses.add(method.substring(0, method.lastIndexOf('.')));
+        }
+        hotExcluded.addAll(hottest);
+        System.err.println("Java Agent: stripping access events of hot methods " + hottest);
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+          if (hotClasses.contains(c.getName().replace('.', '/'))
+              && instrumentation.isModifiableClass(c)) {
+            classes.add(c);
           }
         }
-        return true;
+        retransform(classes);
+      }
+    };
+    hotFinder.setDaemon(true);
+    hotFinder.start();
+  }
+
+  // One class at a time, so that a class that fails does not stop the others.
+  private void retransform(List<Class<?>> classes) {
+    for (Class<?> c : classes) {
+      try {
+        instrumentation.retransformClasses(c);
+      } catch (UnmodifiableClassException e) {
+        System.err.println("Cannot retransform class. Exception: " + e);
+      } catch (LinkageError e) {
+        System.err.println("Cannot retransform class. Exception: " + e);
       }
     }
-    return false;
+  }
+
+  /**
+   * Flushes the writer and the symbol file, if any, periodically and closes
+   * them on exit or detach, so that the trace ends with a trailer and
+   * nothing stays in buffers.
+   */
+  private void startWriterLifecycle(final long flushInterval) {
+    final EventWriter writer = eventWriter;
+    final SymbolFile symbols = this.symbols;
+    closer = new Thread("jtsan-close") {
+      @Override
+      public void run() {
+        writer.close();
+        if (symbols != null) {
+          symbols.close();
+        }
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(closer);
+    if (flushInterval <= 0) {
+      return;
+    }
+    flusher = new Thread("jtsan-periodic-flush") {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            Thread.sleep(flushInterval);
+            writer.flush();
+            if (symbols != null) {
+              symbols.flush();
+            }
+          }
+        } catch (InterruptedException e) {
+          // Exit.
+        }
+      }
+    };
+    flusher.setDaemon(true);
+    flusher.start();
   }
 
   public byte[] transform(ClassLoader loader, String className,
-                          Class clazz, java.security.ProtectionDomain domain, byte[] bytes) {
+                          Class<?> clazz, java.security.ProtectionDomain domain, byte[] bytes) {
     try {
-      if (inIgnoreList(className)) {
+      if (!scope.includesClass(className) || (attached && (loader == null || clazz == null))) {
         return bytes;
       }
+      if (control != null) {
+        if (control.isDisabled(className)) {
+          // Also restores the original bytes when retransformed.
+          transformed.remove(className);
+          disabled.add(className);
+          return bytes;
+        }
+        disabled.remove(className);
+      }
+
+      String cacheKey = null;
+      // Hot methods are stripped in this run only.
+      boolean useCache = classCache != null && !hotClasses.contains(className);
+      if (useCache) {
+        cacheKey = classCache.key(className, bytes, fieldFlags);
+        ClassCache.Entry cached = classCache.load(cacheKey);
+        if (cached != null) {
+          fieldFlags.add(cached.fields);
+          for (CodePos.Position p : cached.positions) {
+            EventListener.codePosition(p.pc, p.method, p.file, p.line);
+          }
+          transformed.add(className);
+          return cached.bytes;
+        }
+      }
 
       ClassAdapter ca;
       ClassReader cr = new ClassReader(bytes);
-      ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
-
-      byte[] res;
-      // Allow no more than a single instrumentation at a time to making code
-      // positions sequential and non-conflicting.
-      synchronized (this) {
-        ca = newMethodTransformAdapter(this, cw, className, codePos, volatileFields);
-        cr.accept(ca, ClassReader.SKIP_FRAMES);
-        res = cw.toByteArray();
-        if (debugClassPrefix != null && className.startsWith(debugClassPrefix)) {
+      FieldFlags.ClassFields fields = FieldFlags.scan(cr);
+      fieldFlags.add(fields);
+      ClassWriter cw = attached
+          ? new FrameComputingWriter(cr, loader) : new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+
+      // Classes are transformed in parallel, each takes code positions from
+      // its own blocks.
+      CodePos codePos = new CodePos();
+      if (useCache) {
+        codePos.record();
+      }
+      ca = newMethodTransformAdapter(this, cw, className, codePos);
+      cr.accept(ca, ClassReader.SKIP_FRAMES);
+      byte[] res = cw.toByteArray();
+      // Classes loaded in the meantime may have changed what the key says
+      // of the fields of others, the bytes may then not match it.
+      if (useCache && cacheKey.equals(classCache.key(className, bytes, fieldFlags))) {
+        classCache.store(cacheKey, new ClassCache.Entry(
+            res, fields, codePos.recorded()));
+      }
+      if (debugClassPrefix != null && className.startsWith(debugClassPrefix)) {
+        synchronized (this) {
           printTransformedClass(res);
         }
       }
 
       if (writeTransformedClasses) {
-        String fileName = TRANSFORMED_CLASSES_ROOT + "/"
-            + className.substring(className.lastIndexOf("/") + 1) + ".class";
-        File f = new File(fileName);
+        // Laid out by package, so that the directory can go on a class path.
+        File f = new File(TRANSFORMED_CLASSES_ROOT, className + ".class");
+        f.getParentFile().mkdirs();
         printTransformedClassToFile(res, f);
       }
-      
+      transformed.add(className);
+
       return res;
     } catch (CodeSizeLimiter.MethodTooLongException e) {
       System.out.println("Too long method code: " + className + "." + e.getMethodName() +
@@ -257,25 +856,66 @@ public class Agent implements ClassFileTransformer {
     }
   }
 
+  /**
+   * Computes stack map frames, which a JVM started without -noverify
+   * requires. Common super classes are looked up with the class loader of
+   * the transformed class instead of that of the agent.
+   */
+  private static final class FrameComputingWriter extends ClassWriter {
+    private final ClassLoader loader;
+
+    FrameComputingWriter(ClassReader cr, ClassLoader loader) {
+      super(cr, ClassWriter.COMPUTE_FRAMES);
+      this.loader = loader;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+      Class<?> c;
+      Class<?> d;
+      try {
+        c = Class.forName(type1.replace('/', '.'), false, loader);
+        d = Class.forName(type2.replace('/', '.'), false, loader);
+      } catch (ClassNotFoundException e) {
+        throw new RuntimeException(e.toString());
+      }
+      if (c.isAssignableFrom(d)) {
+        return type1;
+      }
+      if (d.isAssignableFrom(c)) {
+        return type2;
+      }
+      if (c.isInterface() || d.isInterface()) {
+        return "java/lang/Object";
+      }
+      do {
+        c = c.getSuperclass();
+      } while (!c.isAssignableFrom(d));
+      return c.getName().replace('.', '/');
+    }
+  }
+
   private ClassAdapter newMethodTransformAdapter(final Agent myself,
                                                  ClassWriter cw,
                                                  final String className,
-                                                 final CodePos codePos,
-                                                 final Set<String> volatiles) {
+                                                 final CodePos codePos) {
     return new ClassAdapter(cw) {
       private String source;
 
-      private final Set<String> volatileFields = volatiles;
-
       /*
        * Compose a chain of visitors:
        *   MethodTransformer -> LocalVariablesSorter -> CodeSizeLimiter -> MethodVisitor
+       * The method is first read into a MethodNode to find accesses that need
+       * no events, unless that is disabled, and to copy it for sampling.
        */
       public MethodVisitor visitMethod(
           int access, String name, String desc,
           String signature, String[] exceptions) {
         MethodVisitor mv = super.visitMethod(
             access, name, desc, signature, exceptions);
+        if (!scope.includesMethod(className, name)) {
+          return mv;
+        }
         String signatureStr = (null == signature ? "" : signature);
         
         int pos = className.lastIndexOf("/");
@@ -284,26 +924,53 @@ public class Agent implements ClassFileTransformer {
         String fullClassName = "L" + className + ";";
         CodeSizeLimiter csl = new CodeSizeLimiter(mv, name);
         LocalVariablesSorter sorter = new LocalVariablesSorter(access, desc, csl);
-        MethodTransformer transformer = new MethodTransformer(
+        final MethodTransformer transformer = new MethodTransformer(
             myself, sorter, access, name, fullMethodName, desc, fullSourcePath, fullClassName,
-            syncMethods, codePos, volatileFields);
+            syncMethods, codePos, fieldFlags, scope, suppressions);
         transformer.setLocalVarsSorter(sorter);
-        return transformer;
+        final boolean accesses = scope.includesAccesses(className, name)
+            && !hotExcluded.contains(className + "." + name + desc)
+            && !suppressions.suppressesMethod(className, name);
+        if (!accesses) {
+          transformer.skipAccesses();
+        } else if (hotMethods != null) {
+          transformer.registerPcs(hotMethods);
+        }
+        if (!elideAccesses && !sampleAccesses && !paceAccesses) {
+          return transformer;
+        }
+        return new MethodNode(access, name, desc, signature, exceptions) {
+          @Override
+          public void visitEnd() {
+            if (elideAccesses) {
+              transformer.skipFieldAccesses(RedundantAccesses.find(className, this, fieldFlags));
+              LocalObjects local = LocalObjects.find(className, this);
+              if (local != null) {
+                transformer.skipFieldAccesses(local.fieldAccesses);
+                transformer.skipArrayAccesses(local.arrayAccesses);
+              }
+            }
+            // Copied after the analyses, the accesses they number are those
+            // of the original body.
+            SyncOnlyCopy copy = accesses && sampleAccesses
+                ? SyncOnlyCopy.append(this, fieldFlags) : null;
+            if (copy != null) {
+              transformer.skipFieldAccesses(copy.fieldAccesses);
+              transformer.skipArrayAccesses(copy.arrayAccesses);
+              transformer.sampleMethod(Sampler.newMethod(), copy.start.getLabel());
+            }
+            if (accesses && paceAccesses) {
+              transformer.sampleByPeriods();
+            }
+            accept(transformer);
+          }
+        };
       }
 
       @Override
       public void visitSource(String source, String debug) {
         this.source = source;
       }
-
-      @Override
-      public FieldVisitor visitField(
-          int access, String name, String desc, String signature, Object value) {
-        if ((access & Opcodes.ACC_VOLATILE) != 0) {
-          volatileFields.add(className + "." + name);
-        }
-        return super.visitField(access, name, desc, signature, value);
-      }
     };
   }
 
@@ -0,0 +1,83 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+/**
+ * Shadow call stack of one thread, used instead of SBLOCK_ENTER events
+ * around every call. Each frame of an instrumented method keeps the pc of
+ * the call it is making and the last pc announced for it with SBLOCK_ENTER.
+ * A call site is announced only when a callee enters and the site differs
+ * from the one announced before, which is all a reader of the trace needs to
+ * rebuild the stack from RTN_CALL and RTN_EXIT.
+ *
+ * Used only by its thread.
+ */
+final class CallStack {
+
+  static final int NONE = -1;
+
+  final int tid;
+
+  private int[] callSites = new int[64];
+
+  private int[] announced = new int[64];
+
+  private int depth;
+
+  CallStack(int tid) {
+    this.tid = tid;
+    callSites[0] = NONE;
+    announced[0] = NONE;
+  }
+
+  /**
+   * Notes that the current frame calls at {@code pc}.
+   */
+  void call(int pc) {
+    callSites[depth] = pc;
+  }
+
+  /**
+   * Pushes a frame for an entered method. Returns the call site of the
+   * caller to announce, or NONE if it was announced already.
+   */
+  int enter() {
+    int site = callSites[depth];
+    boolean announce = site != announced[depth];
+    announced[depth] = site;
+    if (++depth == callSites.length) {
+      callSites = grow(callSites);
+      announced = grow(announced);
+    }
+    callSites[depth] = NONE;
+    announced[depth] = NONE;
+    return announce ? site : NONE;
+  }
+
+  void exit() {
+    // Unbalanced if the thread was inside instrumented code before the agent
+    // started.
+    if (depth > 0) {
+      depth--;
+    }
+  }
+
+  private static int[] grow(int[] a) {
+    int[] grown = new int[a.length * 2];
+    System.arraycopy(a, 0, grown, 0, a.length);
+    return grown;
+  }
+}
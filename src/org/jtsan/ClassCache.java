@@ -0,0 +1,417 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Keeps transformed classes on disk between runs. An entry is found by a
+ * SHA-1 of the original class bytes, the agent classes, the agent options and
+ * the volatile and final fields of other classes the class accesses, which
+ * decide what accesses get events. It holds the transformed bytes, the code
+ * positions of the class and its volatile and final fields.
+ *
+ * Transformed bytes carry pcs, field ids and sampled method ids as constants, so both must mean
+ * the same in every run using the cache. The cache persists the next free
+ * pc block, the next sampled method id and a journal of field ids, and
+ * restores them at startup. Once half of the pc blocks are taken, the cache
+ * is emptied at startup and pcs and method ids start over, so that a cache
+ * used for long never runs out of pcs. One JVM
+ * at a time owns the cache directory, others run without it, until its
+ * agent detaches.
+ *
+ * Layout of the directory:
+ *   lock          locked by the owning JVM
+ *   pcblocks      the next free pc block: int, the next method id: int
+ *   fields        field id keys in id order: UTF strings
+ *   classes/KEY   entries: [FORMAT: int][bytes length: int][bytes]
+ *                 [volatile fields: int][UTF]...[final fields: int][UTF]...
+ *                 [positions: int][pc: int][method: UTF][file: UTF][line: int]...
+ */
+final class ClassCache {
+
+  private static final int FORMAT = 3;
+
+  // Classes of the agent build, they decide what the transformed bytes are.
+  private static final String[] AGENT_PACKAGES = {"org/jtsan/", "org/objectweb/asm/"};
+
+  private final File classes;
+
+  private final File pcBlocks;
+
+  private final DataOutputStream fieldsOut;
+
+  // Field ids below this are in the journal.
+  private int savedFields;
+
+  private final byte[] salt;
+
+  // Held until the agent detaches.
+  private final FileLock lock;
+
+  /**
+   * Code positions and field flags of a transformed class.
+   */
+  static final class Entry {
+    final byte[] bytes;
+
+    final FieldFlags.ClassFields fields;
+
+    final List<CodePos.Position> positions;
+
+    Entry(byte[] bytes, FieldFlags.ClassFields fields, List<CodePos.Position> positions) {
+      this.bytes = bytes;
+      this.fields = fields;
+      this.positions = positions;
+    }
+  }
+
+  private ClassCache(File dir, FileLock lock, String config, int savedFields)
+      throws IOException {
+    this.lock = lock;
+    this.classes = new File(dir, "classes");
+    this.pcBlocks = new File(dir, "pcblocks");
+    this.savedFields = savedFields;
+    this.fieldsOut = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(new File(dir, "fields"), true /* append */)));
+    this.salt = (FORMAT + ":" + agentVersion() + ":" + config).getBytes("UTF-8");
+  }
+
+  /**
+   * Opens the cache in {@code dir} and restores pcs, method ids and field
+   * ids from it. Returns null if another JVM owns the cache or it cannot be
+   * used.
+   */
+  static ClassCache open(File dir, String config) {
+    try {
+      File classes = new File(dir, "classes");
+      if (!classes.isDirectory() && !classes.mkdirs()) {
+        throw new IOException("cannot create " + classes);
+      }
+      FileLock lock = new RandomAccessFile(new File(dir, "lock"), "rw").getChannel().tryLock();
+      if (lock == null) {
+        System.err.println("Java Agent: class cache " + dir + " is used by another JVM");
+        return null;
+      }
+      List<String> fields = readFields(new File(dir, "fields"));
+      FieldIds.restore(fields);
+      readPcBlocks(new File(dir, "pcblocks"));
+      if (CodePos.nextBlock() > CodePos.MAX_BLOCKS / 2) {
+        clear(dir, classes);
+      }
+      return new ClassCache(dir, lock, config, fields.size());
+    } catch (IOException e) {
+      System.err.println("Java Agent: class cache " + dir + " is disabled: " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the key of a class with what {@code fieldFlags} knows now of the
+   * fields of other classes it accesses.
+   */
+  String key(String className, byte[] bytes, FieldFlags fieldFlags) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      md.update(salt);
+      md.update(className.getBytes("UTF-8"));
+      md.update(bytes);
+      md.update(fieldFlags.referencedBy(new ClassReader(bytes)).getBytes("UTF-8"));
+      return hex(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the entry stored under {@code key}, or null if there is none.
+   */
+  Entry load(String key) throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(classes, key))));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    try {
+      if (in.readInt() != FORMAT) {
+        return null;
+      }
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      List<String> volatiles = readStrings(in);
+      FieldFlags.ClassFields fields = new FieldFlags.ClassFields(volatiles, readStrings(in));
+      List<CodePos.Position> positions = new ArrayList<CodePos.Position>();
+      for (int i = in.readInt(); i > 0; i--) {
+        positions.add(new CodePos.Position(in.readInt(), in.readUTF(), in.readUTF(), in.readInt()));
+      }
+      return new Entry(bytes, fields, positions);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Stores {@code entry} under {@code key}. The field ids and pc blocks the
+   * entry may use are persisted first, so that a crash never leaves an entry
+   * that refers to unsaved ones.
+   */
+  synchronized void store(String key, Entry entry) throws IOException {
+    for (String field : FieldIds.keysFrom(savedFields)) {
+      fieldsOut.writeUTF(field);
+      savedFields++;
+    }
+    fieldsOut.flush();
+    DataOutputStream blocks = new DataOutputStream(new FileOutputStream(pcBlocks));
+    try {
+      blocks.writeInt(CodePos.nextBlock());
+      blocks.writeInt(Sampler.nextMethod());
+    } finally {
+      blocks.close();
+    }
+
+    File tmp = new File(classes, key + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(FORMAT);
+      out.writeInt(entry.bytes.length);
+      out.write(entry.bytes);
+      writeStrings(out, entry.fields.volatiles);
+      writeStrings(out, entry.fields.finals);
+      out.writeInt(entry.positions.size());
+      for (CodePos.Position p : entry.positions) {
+        out.writeInt(p.pc);
+        out.writeUTF(p.method);
+        out.writeUTF(p.file);
+        out.writeInt(p.line);
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(new File(classes, key))) {
+      tmp.delete();
+    }
+  }
+
+  /**
+   * Releases the directory when the agent detaches. Classes transformed
+   * after that are not stored.
+   */
+  synchronized void close() {
+    try {
+      fieldsOut.close();
+      lock.channel().close();
+    } catch (IOException e) {
+      System.err.println("Java Agent: cannot close class cache: " + e);
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    List<String> strings = new ArrayList<String>();
+    for (int i = in.readInt(); i > 0; i--) {
+      strings.add(in.readUTF());
+    }
+    return strings;
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> strings)
+      throws IOException {
+    out.writeInt(strings.size());
+    for (String s : strings) {
+      out.writeUTF(s);
+    }
+  }
+
+  // A journal cut by a crash keeps the complete keys and loses the last one.
+  private static List<String> readFields(File file) throws IOException {
+    List<String> fields = new ArrayList<String>();
+    if (!file.exists()) {
+      return fields;
+    }
+    RandomAccessFile in = new RandomAccessFile(file, "rw");
+    try {
+      long good = 0;
+      try {
+        while (true) {
+          fields.add(in.readUTF());
+          good = in.getFilePointer();
+        }
+      } catch (EOFException e) {
+        in.setLength(good);
+      }
+    } finally {
+      in.close();
+    }
+    return fields;
+  }
+
+  // Drops all entries, the pcs and method ids in them may be reused now.
+  private static void clear(File dir, File classes) throws IOException {
+    File[] entries = classes.listFiles();
+    if (entries != null) {
+      for (File entry : entries) {
+        entry.delete();
+      }
+    }
+    if (!new File(dir, "pcblocks").delete()) {
+      throw new IOException("cannot reset " + dir);
+    }
+    CodePos.startAt(0);
+    Sampler.startAt(0);
+  }
+
+  // Restores the next pc block and method id. Caches written before
+  // sampling existed have no method id, and no sampled methods.
+  private static void readPcBlocks(File file) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      CodePos.startAt(in.readInt());
+      if (in.available() > 0) {
+        Sampler.startAt(in.readInt());
+      }
+    } catch (EOFException e) {
+      throw new IOException("truncated " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  // Changes whenever the agent jar is rebuilt.
+  /**
+   * Returns a SHA-1 of the names and contents of the agent classes. The
+   * agent may be loaded from anywhere, the boot class path included, and
+   * a rebuilt jar may keep its name, size and time.
+   */
+  private static String agentVersion() throws IOException {
+    // The bootstrap loader of agent classes is reached through the system one.
+    URL url = ClassLoader.getSystemResource("org/jtsan/Agent.class");
+    if (url == null) {
+      throw new IOException("cannot find the agent classes");
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      URLConnection connection = url.openConnection();
+      if (connection instanceof JarURLConnection) {
+        digestJar(md, ((JarURLConnection) connection).getJarFile());
+      } else if (url.getProtocol().equals("file")) {
+        // Three levels up from org/jtsan/Agent.class.
+        File root = new File(url.toURI()).getParentFile().getParentFile().getParentFile();
+        for (String name : AGENT_PACKAGES) {
+          digestDir(md, new File(root, name), name);
+        }
+      } else {
+        throw new IOException("cannot read the agent classes at " + url);
+      }
+      return hex(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (URISyntaxException e) {
+      throw new IOException("cannot read the agent classes at " + url + ": " + e);
+    }
+  }
+
+  // The CRCs in the jar directory stand for the contents of its classes.
+  private static void digestJar(MessageDigest md, JarFile jar) throws IOException {
+    List<String> entries = new ArrayList<String>();
+    for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+      JarEntry entry = e.nextElement();
+      if (isAgentClass(entry.getName())) {
+        entries.add(entry.getName() + ":" + Long.toHexString(entry.getCrc()));
+      }
+    }
+    Collections.sort(entries);
+    for (String entry : entries) {
+      md.update(entry.getBytes("UTF-8"));
+    }
+  }
+
+  private static void digestDir(MessageDigest md, File dir, String path) throws IOException {
+    String[] names = dir.list();
+    if (names == null) {
+      return;
+    }
+    Arrays.sort(names);
+    byte[] buf = new byte[8192];
+    for (String name : names) {
+      File file = new File(dir, name);
+      if (file.isDirectory()) {
+        digestDir(md, file, path + name + "/");
+      } else if (name.endsWith(".class")) {
+        md.update((path + name).getBytes("UTF-8"));
+        InputStream in = new FileInputStream(file);
+        try {
+          for (int n; (n = in.read(buf)) > 0; ) {
+            md.update(buf, 0, n);
+          }
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  private static boolean isAgentClass(String name) {
+    if (!name.endsWith(".class")) {
+      return false;
+    }
+    for (String prefix : AGENT_PACKAGES) {
+      if (name.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder s = new StringBuilder();
+    for (byte b : bytes) {
+      s.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return s.toString();
+  }
+}
@@ -15,6 +15,10 @@
 
 package org.jtsan;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Increments PC counters when a string description non-identical to the
  * previous one is encountered. Reports newly coming PCs via
@@ -22,36 +26,148 @@ package org.jtsan;
  * enter event know nothing about the line number of the first instruction in
  * the method.
  *
+ * Every transformed class has its own instance. PCs are taken from blocks
+ * reserved atomically, so classes are transformed in parallel without
+ * sharing PCs, and the PCs of a class are sequential within a block.
+ * Blocks go to classes in the order they reserve them, so PCs are the same
+ * from run to run only as far as classes are transformed in the same order;
+ * classes transformed in parallel may swap blocks. Traces describe their PCs
+ * themselves, so they stay readable, but are not comparable PC by PC.
+ *
+ * PCs are non-negative ints. When the blocks run out, all further classes
+ * share the last block and a warning is printed: their PCs are ambiguous,
+ * but never negative.
+ *
  * @author Egor Pasko
  */
 class CodePos {
-  private String lastDescr;
+  private static final int BLOCK_SIZE = 256;
+
+  // Blocks with non-negative PCs, the last one is shared when they run out.
+  static final int MAX_BLOCKS = (Integer.MAX_VALUE / BLOCK_SIZE) + 1;
+
+  private static final AtomicInteger nextBlock = new AtomicInteger();
+
+  private static volatile boolean exhausted;
+
+  /**
+   * A reported PC with its method, source file and line.
+   */
+  static final class Position {
+    final int pc;
+
+    final String method;
+
+    final String file;
+
+    final int line;
+
+    Position(int pc, String method, String file, int line) {
+      this.pc = pc;
+      this.method = method;
+      this.file = file;
+      this.line = line;
+    }
+  }
+
+  private String lastMethod;
+
+  private String lastFile;
+
+  private int lastLine;
+
+  private int lastPC;
 
   private int pc;
 
+  private int blockEnd;
+
   private boolean methodEntered;
 
+  // Reported positions when recording, for the class cache.
+  private List<Position> positions;
+
+  /**
+   * Makes PCs start from the block a previous run stopped at, so that PCs
+   * baked into cached classes stay unique.
+   */
+  static void startAt(int block) {
+    nextBlock.set(block);
+  }
+
+  static int nextBlock() {
+    return nextBlock.get();
+  }
+
+  /**
+   * Keeps the reported positions, see {@link #recorded()}.
+   */
+  void record() {
+    positions = new ArrayList<Position>();
+  }
+
+  List<Position> recorded() {
+    return positions;
+  }
+
   public long incPC(MethodTransformer.DescrCallback cb) {
-    String descr = cb.getDescr();
-    if (descr.equals(lastDescr)) {
-      return pc - 1;
+    // Compared by parts, the description is not formatted at all here.
+    String method = cb.getMethod();
+    String file = cb.getFile();
+    int line = cb.getLine();
+    if (line == lastLine && method.equals(lastMethod) && file.equals(lastFile)) {
+      return lastPC;
     }else{
-      lastDescr = descr;
-      EventListener.codePosition(pc, descr);
+      lastMethod = method;
+      lastFile = file;
+      lastLine = line;
+      reserve();
+      report(pc, method, file, line);
+      lastPC = pc;
       return pc++;
     }
   }
 
   public long incMethodEnterPC() {
     methodEntered = true;
+    reserve();
     return pc;
   }
 
   public void line(int line, MethodTransformer.DescrCallback cb) {
     if (methodEntered) {
-      EventListener.codePosition(pc, cb.getDescr());
+      report(pc, cb.getMethod(), cb.getFile(), cb.getLine());
       pc++;
       methodEntered = false;
     }
   }
+
+  private void report(int pc, String method, String file, int line) {
+    EventListener.codePosition(pc, method, file, line);
+    if (positions != null) {
+      positions.add(new Position(pc, method, file, line));
+    }
+  }
+
+  private void reserve() {
+    if (pc == blockEnd) {
+      int block = nextBlock.getAndIncrement();
+      if (block >= MAX_BLOCKS - 1) {
+        block = outOfBlocks();
+      }
+      pc = block * BLOCK_SIZE;
+      blockEnd = pc + BLOCK_SIZE;
+    }
+  }
+
+  // Keeps the counter from wrapping and hands out the last block.
+  private static int outOfBlocks() {
+    nextBlock.set(MAX_BLOCKS - 1);
+    if (!exhausted) {
+      exhausted = true;
+      System.err.println("Java Agent: out of PCs, classes transformed from now on "
+          + "share their PCs; remove the class cache if one is used");
+    }
+    return MAX_BLOCKS - 1;
+  }
 }
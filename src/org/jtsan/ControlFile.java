@@ -0,0 +1,95 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Rules, read from a file the user edits while the program runs, that turn
+ * instrumentation off and on for packages and classes. Each line is
+ * "disable PREFIX" or "enable PREFIX", the prefix of class names with "/"
+ * or "." as separators. The longest prefix matching a class decides, classes
+ * no rule matches are enabled. Lines starting with "#" are comments.
+ *
+ * Disabled classes are not transformed, or get their original bytes back,
+ * so they cost nothing.
+ */
+final class ControlFile {
+
+  private final File file;
+
+  private long lastModified = -1;
+
+  // Whether classes are enabled, by prefix. Replaced as a whole on reload.
+  private volatile PrefixTrie<Boolean> rules = new PrefixTrie<Boolean>();
+
+  ControlFile(File file) {
+    this.file = file;
+  }
+
+  File file() {
+    return file;
+  }
+
+  /**
+   * Reads the rules again if the file changed since the last call. Returns
+   * the previous rules if it did, null otherwise. A missing file has no
+   * rules.
+   */
+  PrefixTrie<Boolean> reload() throws IOException {
+    long modified = file.exists() ? file.lastModified() : 0;
+    if (modified == lastModified) {
+      return null;
+    }
+    lastModified = modified;
+    PrefixTrie<Boolean> read = new PrefixTrie<Boolean>();
+    if (modified != 0) {
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          line = line.trim();
+          if (line.length() == 0 || line.startsWith("#")) {
+            continue;
+          }
+          String[] parts = line.split("\\s+");
+          if (parts.length != 2
+              || !(parts[0].equals("enable") || parts[0].equals("disable"))) {
+            System.err.println("Java Agent: ignoring control line: " + line);
+            continue;
+          }
+          read.putPrefix(parts[1].replace('.', '/'), parts[0].equals("enable"));
+        }
+      } finally {
+        in.close();
+      }
+    }
+    PrefixTrie<Boolean> previous = rules;
+    rules = read;
+    return previous;
+  }
+
+  boolean isDisabled(String className) {
+    return isDisabled(rules, className);
+  }
+
+  static boolean isDisabled(PrefixTrie<Boolean> rules, String className) {
+    return Boolean.FALSE.equals(rules.get(className));
+  }
+}
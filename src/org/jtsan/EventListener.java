@@ -16,6 +16,7 @@
 package org.jtsan;
 
 import org.jtsan.writers.EventWriter;
+import org.jtsan.writers.SymbolFile;
 
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
@@ -43,10 +44,38 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 public class EventListener {
 
-  private static final long MONITOR_C = 42L;
+  // Low half of monitor ids, no field id or array index takes it.
+  private static final long MONITOR_FIELD = 0xFFFFFFFFL;
+
+  // Set in the low half of field ids, array indices never reach it.
+  private static final long FIELD_MARK = 0x80000000L;
+
+  // High half of static field ids, as if they were fields of one object.
+  private static final long STATIC_FIELDS = 0xFFFFFFFFL << 32L;
 
   private static EventWriter writer;
 
+  // Code positions kept apart from the events, if set.
+  private static SymbolFile symbols;
+
+  // Whether call sites are tracked in CallStack instead of SBLOCK_ENTER
+  // events around every call.
+  private static boolean shadowStack;
+
+  // Whether access events are written now, if sampled by time. Read by
+  // instrumented code at every access, flipped by Sampler.startPeriods.
+  public static volatile boolean sampledPeriod = true;
+
+  // Counts access events by pc while hot methods are looked for.
+  private static HotMethods hotMethods;
+
+  // Whether some methods suppress the accesses made while they are on the
+  // stack.
+  private static boolean suppressedFrames;
+
+  // Whether some arrays are allocated with their accesses suppressed.
+  private static boolean suppressedArrays;
+
   // Typedef replacement.
   static class ReadLockMap extends
       ConcurrentHashMap<ReentrantReadWriteLock.ReadLock, ReentrantReadWriteLock> {
@@ -79,36 +108,116 @@ public class EventListener {
   }
 
   public static long tid() {
-    return Thread.currentThread().getId() - 1;
+    return ThreadIds.current();
+  }
+
+  static void setSuppressedFrames(boolean enabled) {
+    suppressedFrames = enabled;
+  }
+
+  static void setSuppressedArrays(boolean enabled) {
+    suppressedArrays = enabled;
+  }
+
+  static void setHotMethods(HotMethods h) {
+    hotMethods = h;
+  }
+
+  public static void setShadowStack(boolean enabled) {
+    shadowStack = enabled;
+  }
+
+  /**
+   * Keeps code positions in {@code s} instead of passing them to the writer.
+   */
+  public static void setSymbolFile(SymbolFile s) {
+    symbols = s;
+  }
+
+  public static void codePosition(int pc, String method, String file, int line) {
+    if (symbols != null) {
+      symbols.add(pc, method, file, line);
+    } else {
+      writer.writeCodePosition(pc, method + " " + file + " " + line);
+    }
   }
 
-  public static void codePosition(long pc, String descr) {
-    writer.writeCodePosition(pc, descr);
+  /**
+   * Returns the description of {@code pc} if code positions are kept apart
+   * from the events, null otherwise.
+   */
+  public static String describePc(long pc) {
+    return symbols != null ? symbols.describe(pc) : null;
   }
 
   public static void threadsInit() {
-    writer.writeEvent(EventType.THR_START, 0, 0, 0, 0);
-    writer.writeEvent(EventType.THR_FIRST_INSN, 0, 0, 0, 0);
+    long tid = tid();
+    writer.writeEvent(EventType.THR_START, tid, 0, 0, tid);
+    writer.writeEvent(EventType.THR_FIRST_INSN, tid, 0, 0, 0);
+  }
+
+  /**
+   * Frees the address ranges of collected objects, called by ObjectIds before
+   * their ids are given to new objects. A FREE of nothing ends the batch, the
+   * detector drops their state then.
+   */
+  static void objectsFreed(long[] ids, int n) {
+    long tid = tid();
+    for (int i = 0; i < n; i++) {
+      writer.writeEvent(EventType.FREE, tid, 0, ids[i] << 32L, 1L << 32L);
+    }
+    writer.writeEvent(EventType.FREE, tid, 0, 0, 0);
   }
-  
+
   // MethodTransformer hooks.
   public static void beforeCall(long pc) {
+    if (shadowStack) {
+      ThreadIds.stack().call((int) pc);
+      return;
+    }
     writer.writeEvent(EventType.SBLOCK_ENTER, tid(), pc, 0, 0);
   }
 
   public static void afterCall(long pc) {
+    if (shadowStack) {
+      // The caller's frame is known from the call site, the events carry pcs.
+      return;
+    }
     writer.writeEvent(EventType.SBLOCK_ENTER, tid(), pc, 0, 0);
   }
 
   public static void methodEnter(long pc) {
+    if (shadowStack) {
+      CallStack stack = ThreadIds.stack();
+      int site = stack.enter();
+      if (site != CallStack.NONE) {
+        writer.writeEvent(EventType.SBLOCK_ENTER, stack.tid, site, 0, 0);
+      }
+      writer.writeEvent(EventType.RTN_CALL, stack.tid, 0, 0, 0);
+      return;
+    }
     writer.writeEvent(EventType.RTN_CALL, tid(), 0, 0, 0);
     writer.writeEvent(EventType.SBLOCK_ENTER, tid(), pc, 0, 0);
   }
 
   public static void methodExit(long pc) {
+    if (shadowStack) {
+      CallStack stack = ThreadIds.stack();
+      stack.exit();
+      writer.writeEvent(EventType.RTN_EXIT, stack.tid, pc, 0, 0);
+      return;
+    }
     writer.writeEvent(EventType.RTN_EXIT, tid(), pc, 0, 0);
   }
 
+  /**
+   * Returns true if the fully instrumented body of a sampled method runs,
+   * false if its copy with sync events only does.
+   */
+  public static boolean sample(int method) {
+    return ThreadIds.sampler().sample(method);
+  }
+
   public static void runMethodEnter(Object obj, long pc) {
     // Calls to this methods are emitted by the instrumentation process.
   }
@@ -119,17 +228,27 @@ public class EventListener {
 
   public static void reportFieldAccess(
       boolean isWrite, long tid, long pc, long id, boolean isVolatile) {
+    if ((id >>> 32L) == ObjectIds.NO_ID) {
+      // Out of object ids, addresses of such objects are all the same.
+      return;
+    }
     if (isVolatile) {
       writer.writeEvent(isWrite ? EventType.SIGNAL : EventType.WAIT, tid, pc, id, 0);
     } else {
+      if (suppressedFrames && ThreadIds.suppressed()) {
+        return;
+      }
       writer.writeEvent(isWrite ? EventType.WRITE : EventType.READ, tid, pc, id, 1);
+      HotMethods h = hotMethods;
+      if (h != null) {
+        h.count(pc);
+      }
     }
   }
 
   public static void objectFieldAccess(Object obj, boolean isWrite,
-      String fieldName, long pc, boolean isVolatile) {
-    long uniqueId = ((long)System.identityHashCode(obj) << 32L) +
-        (long) System.identityHashCode(fieldName.intern());
+      int fieldId, long pc, boolean isVolatile) {
+    long uniqueId = (ObjectIds.get(obj) << 32L) | FIELD_MARK | fieldId;
     reportFieldAccess(isWrite,
                       tid(),
                       pc,
@@ -138,11 +257,8 @@ public class EventListener {
   }
 
   public static void staticFieldAccess(
-      String owner, String field, boolean isWrite, long pc, boolean isVolatile) {
-    // Instead of taking 'unique' id of the class, take the id of the string representing it.
-    // This is very dirty.
-    long uniqueId = ((long)System.identityHashCode(owner.intern()) << 32L) +
-        (long) System.identityHashCode(field.intern());
+      int fieldId, boolean isWrite, long pc, boolean isVolatile) {
+    long uniqueId = STATIC_FIELDS | FIELD_MARK | fieldId;
     reportFieldAccess(isWrite,
                       tid(),
                       pc,
@@ -150,6 +266,18 @@ public class EventListener {
                       isVolatile);
   }
 
+  /**
+   * Returns the name of the field at {@code address}, or null if the address
+   * is not a field.
+   */
+  public static String fieldName(long address) {
+    long low = address & MONITOR_FIELD;
+    if ((low & FIELD_MARK) == 0 || low == MONITOR_FIELD) {
+      return null;
+    }
+    return FieldIds.name((int) (low & ~FIELD_MARK));
+  }
+
   public static void monitorEnter(Object obj, long pc) {
     writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, calcMonitorId(obj), 0);
   }
@@ -159,6 +287,9 @@ public class EventListener {
   }
 
   public static void arrayAccess(Object array, int index, boolean isWrite, long pc) {
+    if (suppressedArrays && ObjectIds.isSuppressed(array)) {
+      return;
+    }
     reportFieldAccess(isWrite,
                       tid(),
                       pc,
@@ -166,6 +297,19 @@ public class EventListener {
                       false); // isVolatile
   }
 
+  // Suppression hooks.
+  public static void suppressArray(Object array) {
+    ObjectIds.suppress(array);
+  }
+
+  public static void suppressEnter() {
+    ThreadIds.suppressEnter();
+  }
+
+  public static void suppressExit() {
+    ThreadIds.suppressExit();
+  }
+
   // Race detector API hooks.
   public static void rdaApiNoOp(Object obj, long pc) {
     // writer.writeEvent("T" + tid() + " API_NO_OP " + pc);
@@ -212,55 +356,63 @@ public class EventListener {
     // ArrayStoreException case 1 (see javadoc), but don't handle
     // ArrayStoreException case 2 (see javadoc), when part of values are stored and
     // part are discarded (It's very tricky case).
+    boolean srcSuppressed = suppressedArrays && ObjectIds.isSuppressed(src);
+    boolean destSuppressed = suppressedArrays && ObjectIds.isSuppressed(dest);
     for (int i = 0; i < length; i++) {
-      long srcId = ((long)System.identityHashCode(src) << 32L) + (long)(i + srcPos);
-            reportFieldAccess(false,   // isWrite
-                              tid(),
-                              pc,
-                              srcId,
-                              false); // isVolatile
-      long destId = ((long)System.identityHashCode(dest) << 32L) + (long)(i + destPos);
-            reportFieldAccess(true,   // isWrite
-                              tid(),
-                              pc,
-                              destId,
-                              false); // isVolatile
+      if (!srcSuppressed) {
+        long srcId = calcArrayId(src, i + srcPos);
+              reportFieldAccess(false,   // isWrite
+                                tid(),
+                                pc,
+                                srcId,
+                                false); // isVolatile
+      }
+      if (!destSuppressed) {
+        long destId = calcArrayId(dest, i + destPos);
+              reportFieldAccess(true,   // isWrite
+                                tid(),
+                                pc,
+                                destId,
+                                false); // isVolatile
+      }
     }
   }
 
   public static void jlThreadStart(Thread thr, long pc) {
     long parent_tid = tid();
-    long child_tid = thr.getId() - 1;
+    long child_tid = ThreadIds.start(thr);
     writer.writeEvent(EventType.THR_START, child_tid, 0, 0, parent_tid);
     writer.writeEvent(EventType.THR_FIRST_INSN, child_tid, pc, 0, 0);
   }
 
   public static void jlThreadJoin(Thread thr, long pc) {
     long parent_tid = tid();
-    long child_tid = thr.getId() - 1;
-    writer.writeEvent(EventType.THR_END, child_tid, pc, 0, 0);
+    long child_tid = ThreadIds.of(thr);
+    if (ThreadIds.release(thr)) {
+      writer.writeEvent(EventType.THR_END, child_tid, pc, 0, 0);
+    }
     writer.writeEvent(EventType.THR_JOIN_AFTER, parent_tid, pc, child_tid, 0);
   }
 
   // java.util.concurrent.locks.AbstractQueuedSynchronizer
 
   public static void juclAQS_releaseShared(AbstractQueuedSynchronizer owner, int arg, long pc) {
-    writer.writeEvent(EventType.SIGNAL, tid(), pc, System.identityHashCode(owner), 0);
+    writer.writeEvent(EventType.SIGNAL, tid(), pc, ObjectIds.get(owner), 0);
   }
 
   public static void juclAQS_acquireSharedInterruptibly(AbstractQueuedSynchronizer owner,
                                                         int arg, long pc){
-    writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(owner), 0);
+    writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(owner), 0);
   }
 
   public static void juclAQS_acquireShared(AbstractQueuedSynchronizer owner, int arg, long pc){
-    writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(owner), 0);
+    writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(owner), 0);
   }
 
   public static void juclAQS_tryAcquireSharedNanos(AbstractQueuedSynchronizer owner,
                                                    int arg, long nanos, boolean result, long pc) {
     if (result) {
-      writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(owner), 0);
+      writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(owner), 0);
     }
   }
     
@@ -268,14 +420,14 @@ public class EventListener {
 
   public static void jucRRWL_ReadLock_lock(ReentrantReadWriteLock.ReadLock lock, long pc){
     writer.writeEvent(EventType.READER_LOCK, tid(), pc,
-                      System.identityHashCode(readLockMap.get(lock)), 0);
+                      ObjectIds.get(readLockMap.get(lock)), 0);
   }
 
   public static void jucRRWL_ReadLock_tryLock(
       ReentrantReadWriteLock.ReadLock lock, boolean succeeded, long pc){
     if (succeeded) {
       writer.writeEvent(EventType.READER_LOCK, tid(), pc,
-                        System.identityHashCode(readLockMap.get(lock)), 0);
+                        ObjectIds.get(readLockMap.get(lock)), 0);
     }
   }
 
@@ -285,25 +437,25 @@ public class EventListener {
                                                boolean succeeded, long pc){
     if (succeeded) {
       writer.writeEvent(EventType.READER_LOCK, tid(), pc,
-                        System.identityHashCode(readLockMap.get(lock)), 0);
+                        ObjectIds.get(readLockMap.get(lock)), 0);
     }
   }
 
   public static void jucRRWL_ReadLock_unlock(ReentrantReadWriteLock.ReadLock lock, long pc){
     writer.writeEvent(EventType.UNLOCK, tid(), pc,
-                      System.identityHashCode(readLockMap.get(lock)), 0);
+                      ObjectIds.get(readLockMap.get(lock)), 0);
   }
 
   public static void jucRRWL_WriteLock_lock(ReentrantReadWriteLock.WriteLock lock, long pc){
     writer.writeEvent(EventType.WRITER_LOCK, tid(), pc,
-                      System.identityHashCode(writeLockMap.get(lock)), 0);
+                      ObjectIds.get(writeLockMap.get(lock)), 0);
   }
 
   public static void jucRRWL_WriteLock_tryLock(
       ReentrantReadWriteLock.WriteLock lock, boolean succeeded, long pc){
     if (succeeded) {
       writer.writeEvent(EventType.WRITER_LOCK, tid(), pc,
-                        System.identityHashCode(writeLockMap.get(lock)), 0);
+                        ObjectIds.get(writeLockMap.get(lock)), 0);
     }
   }
 
@@ -313,40 +465,40 @@ public class EventListener {
                                                 boolean succeeded, long pc){
     if (succeeded) {
       writer.writeEvent(EventType.WRITER_LOCK, tid(), pc,
-                        System.identityHashCode(writeLockMap.get(lock)), 0);
+                        ObjectIds.get(writeLockMap.get(lock)), 0);
     }
   }
 
   public static void jucRRWL_WriteLock_unlock(ReentrantReadWriteLock.WriteLock lock, long pc){
     writer.writeEvent(EventType.UNLOCK, tid(), pc,
-                      System.identityHashCode(writeLockMap.get(lock)), 0);
+                      ObjectIds.get(writeLockMap.get(lock)), 0);
   }
 
   // java.util.concurrent.locks.Lock
 
   public static void jucRL_lock(ReentrantLock lock, long pc){
-    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   public static void jucRL_tryLock(ReentrantLock lock, boolean returned, long pc) {
     if (returned) {
-      writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
+      writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
     }
   }
 
   public static void jucRL_tryLock2(
       ReentrantLock lock, long timeout, TimeUnit unit, boolean returned, long pc) {
     if (returned) {
-      writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
+      writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
     }
   }
 
   public static void jucRL_unlock(ReentrantLock lock, long pc){
-    writer.writeEvent(EventType.UNLOCK, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.UNLOCK, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   public static void juclLock_lockInterruptibly(Lock lock, long pc) {
-    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   // java.util.concurrent.locks.ReadLock & java.util.concurrent.locks.WriteLock
@@ -365,63 +517,63 @@ public class EventListener {
 
   public static void juclCondition_awaitBefore(Condition condition, long pc) {
     writer.writeEvent(EventType.UNLOCK, tid(), pc,
-                      System.identityHashCode(conditionMap.get(condition)), 0);
+                      ObjectIds.get(conditionMap.get(condition)), 0);
   }
 
   public static void juclCondition_awaitAfter(Condition condition, long pc) {
     Lock lock = conditionMap.get(condition);
-    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
-    writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
+    writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   public static void juclCondition_await2Before(Condition condition, long time,
                                                 TimeUnit unit, boolean returned, long pc) {
     writer.writeEvent(EventType.UNLOCK, tid(), pc,
-                      System.identityHashCode(conditionMap.get(condition)), 0);
+                      ObjectIds.get(conditionMap.get(condition)), 0);
   }
 
   public static void juclCondition_await2After(Condition condition, long time,
                                                 TimeUnit unit, boolean returned, long pc) {
     Lock lock = conditionMap.get(condition);
-    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
-    writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
+    writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   public static void juclCondition_awaitNanosBefore(Condition condition,
                                                     long nanosTimeout, long nanos, long pc) {
     writer.writeEvent(EventType.UNLOCK, tid(), pc,
-                      System.identityHashCode(conditionMap.get(condition)), 0);
+                      ObjectIds.get(conditionMap.get(condition)), 0);
   }
 
   public static void juclCondition_awaitNanosAfter(Condition condition,
                                                    long nanosTimeout, long nanos, long pc) {
     Lock lock = conditionMap.get(condition);
-    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
-    writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
+    writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   public static void juclCondition_awaitUninterruptiblyBefore(Condition condition, long pc) {
     writer.writeEvent(EventType.UNLOCK, tid(), pc,
-                      System.identityHashCode(conditionMap.get(condition)), 0);
+                      ObjectIds.get(conditionMap.get(condition)), 0);
   }
 
   public static void juclCondition_awaitUninterruptiblyAfter(Condition condition, long pc) {
     Lock lock = conditionMap.get(condition);
-    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
-    writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
+    writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   public static void juclCondition_awaitUntilBefore(Condition condition,
                                                     Date deadline, boolean returner, long pc) {
     writer.writeEvent(EventType.UNLOCK, tid(), pc,
-                      System.identityHashCode(conditionMap.get(condition)), 0);
+                      ObjectIds.get(conditionMap.get(condition)), 0);
   }
 
   public static void juclCondition_awaitUntilAfter(Condition condition,
                                                    Date deadline, boolean returner, long pc) {
     Lock lock = conditionMap.get(condition);
-    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
-    writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(lock), 0);
+    writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
+    writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(lock), 0);
   }
 
   public static void juclLock_newCondition(Lock lock, Condition condition, long pc) {
@@ -430,19 +582,19 @@ public class EventListener {
 
   public static void juclCondition_signalAll(Condition condition, long pc) {
     writer.writeEvent(EventType.SIGNAL, tid(), pc,
-                      System.identityHashCode(conditionMap.get(condition)), 0);
+                      ObjectIds.get(conditionMap.get(condition)), 0);
   }
 
   public static void juclCondition_signal(Condition condition, long pc) {
     writer.writeEvent(EventType.SIGNAL, tid(), pc,
-                      System.identityHashCode(conditionMap.get(condition)), 0);
+                      ObjectIds.get(conditionMap.get(condition)), 0);
   }
 
   public static void juclCondition_awaitException(Condition c, Throwable e, long pc) {
     if (e instanceof InterruptedException) {
       Lock lock = conditionMap.get(c);
-      writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, System.identityHashCode(lock), 0);
-      writer.writeEvent(EventType.WAIT, tid(), pc, System.identityHashCode(lock), 0);
+      writer.writeEvent(EventType.WRITER_LOCK, tid(), pc, ObjectIds.get(lock), 0);
+      writer.writeEvent(EventType.WAIT, tid(), pc, ObjectIds.get(lock), 0);
     }
   }
 
@@ -450,48 +602,48 @@ public class EventListener {
 
   public static void juclLockSupport_park(long pc) {
     writer.writeEvent(EventType.WAIT, tid(), pc,
-                      System.identityHashCode(Thread.currentThread()), 0);
+                      ObjectIds.get(Thread.currentThread()), 0);
   }
 
   public static void juclLockSupport_park2(Object blocker, long pc) {
     writer.writeEvent(EventType.WAIT, tid(), pc,
-                      System.identityHashCode(Thread.currentThread()), 0);
+                      ObjectIds.get(Thread.currentThread()), 0);
   }
 
   public static void juclLockSupport_parkNanos(long nanos, long pc) {
     writer.writeEvent(EventType.WAIT, tid(), pc,
-                      System.identityHashCode(Thread.currentThread()), 0);
+                      ObjectIds.get(Thread.currentThread()), 0);
   }
 
   public static void juclLockSupport_parkNanos2(Object blocker, long nanos, long pc) {
     writer.writeEvent(EventType.WAIT, tid(), pc,
-                      System.identityHashCode(Thread.currentThread()), 0);
+                      ObjectIds.get(Thread.currentThread()), 0);
   }
 
   public static void juclLockSupport_parkUntil(long deadline, long pc) {
     writer.writeEvent(EventType.WAIT, tid(), pc,
-                      System.identityHashCode(Thread.currentThread()), 0);
+                      ObjectIds.get(Thread.currentThread()), 0);
   }
 
   public static void juclLockSupport_parkUntil2(Object blocker, long deadline, long pc) {
     writer.writeEvent(EventType.WAIT, tid(), pc,
-                      System.identityHashCode(Thread.currentThread()), 0);
+                      ObjectIds.get(Thread.currentThread()), 0);
   }
 
   public static void juclLockSupport_unpark(Thread thread, long pc) {
     writer.writeEvent(EventType.SIGNAL, tid(), pc,
-                      System.identityHashCode(thread), 0);
+                      ObjectIds.get(thread), 0);
   }
   
   // Private methods.
 
   private static long calcMonitorId(Object obj) {
-    // Use low 32bit for object hash and high 32bit for the magic constant.
-    return (MONITOR_C << 32L) + (long)System.identityHashCode(obj);
+    // Use high 32bit for object id and low 32bit for the monitor marker.
+    return (ObjectIds.get(obj) << 32L) | MONITOR_FIELD;
   }
 
   private static long calcArrayId(Object array, int index) {
-    return ((long)System.identityHashCode(array) << 32L) + (long)index;
+    return (ObjectIds.get(array) << 32L) + (long)index;
   }
 
   public static void popAndPrint(Object o) {
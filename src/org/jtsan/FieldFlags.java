@@ -0,0 +1,261 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the transformer knows about fields of the classes it has seen, keyed
+ * by "owner.name". Classes are transformed in parallel and share it.
+ *
+ * Volatile fields order threads. Final fields, and private fields that only
+ * constructors or static initializers of their own object or class write,
+ * cannot race once the object or class is initialized, so accessing them
+ * needs no event. A class whose fields are all such is immutable after
+ * construction, none of its fields is instrumented. Private fields of a
+ * class in a nest, since Java 11, are not final in effect: other classes of
+ * the nest write them directly instead of through access methods of the
+ * class, and those classes are not scanned with it.
+ *
+ * Fields of classes that were not loaded yet are not known and are treated
+ * as plain fields. The transformation of a class thus depends on what is
+ * known of the fields of other classes it accesses, see
+ * {@link #referencedBy}.
+ */
+final class FieldFlags {
+
+  private final Set<String> volatiles =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private final Set<String> finals =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  /**
+   * The volatile and final fields of one class, as "owner.name".
+   */
+  static final class ClassFields {
+    final List<String> volatiles;
+
+    final List<String> finals;
+
+    ClassFields(List<String> volatiles, List<String> finals) {
+      this.volatiles = volatiles;
+      this.finals = finals;
+    }
+  }
+
+  void add(ClassFields fields) {
+    volatiles.addAll(fields.volatiles);
+    finals.addAll(fields.finals);
+  }
+
+  boolean isVolatile(String owner, String name) {
+    return volatiles.contains(owner + "." + name);
+  }
+
+  /**
+   * Returns true for fields final by declaration or in effect.
+   */
+  boolean isFinal(String owner, String name) {
+    return finals.contains(owner + "." + name);
+  }
+
+  /**
+   * Returns what is known now of the fields of other classes accessed by the
+   * class read by {@code cr}: the volatile and final ones, one per line.
+   */
+  String referencedBy(ClassReader cr) {
+    final String owner = cr.getClassName();
+    final Set<String> seen = new HashSet<String>();
+    final StringBuilder facts = new StringBuilder();
+    // In the order of the code, no collection that sorts: classes it would
+    // load now would not be transformed.
+    cr.accept(new EmptyVisitor() {
+      @Override
+      public void visitFieldInsn(int opcode, String fieldOwner, String name, String desc) {
+        String key = fieldOwner + "." + name;
+        if (fieldOwner.equals(owner) || !seen.add(key)) {
+          return;
+        }
+        if (volatiles.contains(key)) {
+          facts.append(key).append(" volatile\n");
+        } else if (finals.contains(key)) {
+          facts.append(key).append(" final\n");
+        }
+      }
+    }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    return facts.toString();
+  }
+
+  /**
+   * Finds the volatile and final fields of the class read by {@code cr}. A
+   * private field is final in effect if no method writes it except the
+   * constructors through "this", or the static initializer for a static,
+   * and the class has no nestmates.
+   */
+  static ClassFields scan(ClassReader cr) {
+    Scanner scanner = new Scanner();
+    cr.accept(scanner, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    for (MethodNode init : scanner.inits) {
+      scanner.scanConstructor(init);
+    }
+    List<String> volatiles = new ArrayList<String>();
+    List<String> finals = new ArrayList<String>();
+    for (Map.Entry<String, Integer> field : scanner.fields.entrySet()) {
+      String name = field.getKey();
+      int access = field.getValue();
+      String key = scanner.owner + "." + name;
+      if ((access & Opcodes.ACC_VOLATILE) != 0) {
+        volatiles.add(key);
+      } else if ((access & Opcodes.ACC_FINAL) != 0) {
+        finals.add(key);
+      } else if ((access & Opcodes.ACC_PRIVATE) != 0 && !scanner.nested
+          && !scanner.written.contains(name)) {
+        finals.add(key);
+      }
+    }
+    return new ClassFields(volatiles, finals);
+  }
+
+  /**
+   * Collects fields and the fields written outside of initialization.
+   */
+  private static final class Scanner extends EmptyVisitor {
+    String owner;
+
+    final Map<String, Integer> fields = new HashMap<String, Integer>();
+
+    // Own fields written other than by initialization.
+    final Set<String> written = new HashSet<String>();
+
+    final List<MethodNode> inits = new ArrayList<MethodNode>();
+
+    // Whether the class has a NestHost or NestMembers attribute.
+    boolean nested;
+
+    @Override
+    public void visit(int version, int access, String name, String signature,
+                      String superName, String[] interfaces) {
+      owner = name;
+    }
+
+    @Override
+    public void visitAttribute(Attribute attr) {
+      if (attr.type.equals("NestHost") || attr.type.equals("NestMembers")) {
+        nested = true;
+      }
+    }
+
+    @Override
+    public FieldVisitor visitField(
+        int access, String name, String desc, String signature, Object value) {
+      fields.put(name, access);
+      return null;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(
+        int access, final String name, String desc, String signature, String[] exceptions) {
+      if (name.equals("<init>")) {
+        MethodNode init = new MethodNode(access, name, desc, signature, exceptions);
+        inits.add(init);
+        return init;
+      }
+      return new EmptyVisitor() {
+        @Override
+        public void visitFieldInsn(int opcode, String fieldOwner, String field, String desc) {
+          if (!fieldOwner.equals(owner)) {
+            return;
+          }
+          if (opcode == Opcodes.PUTFIELD
+              || (opcode == Opcodes.PUTSTATIC && !name.equals("<clinit>"))) {
+            written.add(field);
+          }
+        }
+      };
+    }
+
+    // Writes to fields of "this" initialize them, the others do not.
+    void scanConstructor(MethodNode init) {
+      Frame[] frames;
+      try {
+        frames = new Analyzer(new SourceInterpreter()).analyze(owner, init);
+      } catch (AnalyzerException e) {
+        frames = null;
+      }
+      boolean thisStored = false;
+      for (int i = 0; i < init.instructions.size(); i++) {
+        AbstractInsnNode insn = init.instructions.get(i);
+        if (insn.getOpcode() == Opcodes.ASTORE && ((VarInsnNode) insn).var == 0) {
+          thisStored = true;
+        }
+      }
+      for (int i = 0; i < init.instructions.size(); i++) {
+        AbstractInsnNode insn = init.instructions.get(i);
+        int op = insn.getOpcode();
+        if (op != Opcodes.PUTFIELD && op != Opcodes.PUTSTATIC) {
+          continue;
+        }
+        FieldInsnNode field = (FieldInsnNode) insn;
+        if (!field.owner.equals(owner)) {
+          continue;
+        }
+        if (op == Opcodes.PUTSTATIC || thisStored || frames == null
+            || !isThis(frames[i])) {
+          written.add(field.name);
+        }
+      }
+    }
+
+    // Whether the object of a PUTFIELD is loaded from local 0.
+    private static boolean isThis(Frame frame) {
+      if (frame == null) {
+        return false;
+      }
+      Set<?> insns = ((SourceValue) frame.getStack(frame.getStackSize() - 2)).insns;
+      for (Object source : insns) {
+        AbstractInsnNode insn = (AbstractInsnNode) source;
+        if (insn.getOpcode() != Opcodes.ALOAD || ((VarInsnNode) insn).var != 0) {
+          return false;
+        }
+      }
+      return !insns.isEmpty();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns dense integer ids to fields at transformation time, so that the
+ * instrumented code passes a constant instead of interning names on every
+ * access. Instance fields are keyed by name, like objects of a class
+ * hierarchy share them, static fields by "owner.name".
+ */
+final class FieldIds {
+
+  private static final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+  private static final List<String> names = new ArrayList<String>();
+
+  private FieldIds() {
+  }
+
+  static synchronized int get(String key) {
+    Integer id = ids.get(key);
+    if (id == null) {
+      id = names.size();
+      ids.put(key, id);
+      names.add(key);
+    }
+    return id;
+  }
+
+  /**
+   * Returns the field name or "owner.name" of a static field.
+   */
+  static synchronized String name(int id) {
+    return id < names.size() ? names.get(id) : null;
+  }
+
+  /**
+   * Gives {@code keys} the ids of their positions, as in an earlier run.
+   * Called before any id is assigned.
+   */
+  static synchronized void restore(List<String> keys) {
+    for (String key : keys) {
+      get(key);
+    }
+  }
+
+  /**
+   * Returns the keys with ids from {@code id} on, in id order.
+   */
+  static synchronized List<String> keysFrom(int id) {
+    return new ArrayList<String>(names.subList(Math.min(id, names.size()), names.size()));
+  }
+}
@@ -0,0 +1,128 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts access events by pc while the program warms up, to find the
+ * methods that write most of them.
+ *
+ * Counters are incremented without synchronization, a few increments get
+ * lost under contention, which does not matter for ranking methods.
+ */
+final class HotMethods {
+
+  /**
+   * Counters of the registered pcs by open addressing, pcs are spread over
+   * the whole int range. Free slots hold -1.
+   */
+  private static final class Table {
+    final int[] pcs;
+
+    // Methods, as "class.name" and the descriptor, by slot.
+    final String[] methods;
+
+    // Access events by slot.
+    final int[] counts;
+
+    Table(int capacity) {
+      pcs = new int[capacity];
+      Arrays.fill(pcs, -1);
+      methods = new String[capacity];
+      counts = new int[capacity];
+    }
+
+    // The slot of pc, or the free slot it goes to.
+    int slot(int pc) {
+      int mask = pcs.length - 1;
+      int h = pc * 0x9E3779B9;
+      int i = (h ^ (h >>> 16)) & mask;
+      while (pcs[i] != -1 && pcs[i] != pc) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+  }
+
+  // Replaced when grown, increments on the old table in the meantime are
+  // lost.
+  private volatile Table table = new Table(4096);
+
+  private int size;
+
+  /**
+   * Notes that {@code pc} is in {@code method}, before any event with it.
+   */
+  synchronized void register(long pc, String method) {
+    Table t = table;
+    if ((size + 1) * 2 > t.pcs.length) {
+      Table grown = new Table(t.pcs.length * 2);
+      for (int j = 0; j < t.pcs.length; j++) {
+        if (t.pcs[j] != -1) {
+          int i = grown.slot(t.pcs[j]);
+          grown.methods[i] = t.methods[j];
+          grown.counts[i] = t.counts[j];
+          grown.pcs[i] = t.pcs[j];
+        }
+      }
+      table = t = grown;
+    }
+    int i = t.slot((int) pc);
+    if (t.pcs[i] == -1) {
+      size++;
+    }
+    // The method first, count() only looks at pcs.
+    t.methods[i] = method;
+    t.pcs[i] = (int) pc;
+  }
+
+  void count(long pc) {
+    Table t = table;
+    int i = t.slot((int) pc);
+    if (t.pcs[i] != -1) {
+      t.counts[i]++;
+    }
+  }
+
+  /**
+   * Returns up to {@code n} methods with the most access events, the
+   * hottest first.
+   */
+  synchronized List<String> hottest(int n) {
+    final Map<String, Long> events = new HashMap<String, Long>();
+    Table t = table;
+    for (int i = 0; i < t.pcs.length; i++) {
+      if (t.counts[i] > 0 && t.methods[i] != null) {
+        Long sum = events.get(t.methods[i]);
+        events.put(t.methods[i], (sum == null ? 0 : sum) + t.counts[i]);
+      }
+    }
+    List<String> ranked = new ArrayList<String>(events.keySet());
+    Collections.sort(ranked, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return events.get(b).compareTo(events.get(a));
+      }
+    });
+    return ranked.subList(0, Math.min(n, ranked.size()));
+  }
+}
@@ -0,0 +1,315 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+import org.objectweb.asm.tree.analysis.Value;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds field and array accesses to objects that the method allocates and
+ * that never leave it, no other thread can see them.
+ *
+ * The analysis is conservative. A value tracks the allocations (NEW,
+ * NEWARRAY, ANEWARRAY, MULTIANEWARRAY) it may come from, and whether it may
+ * come from anywhere else. An allocation escapes when a value it may flow
+ * into is stored to a field, a static or an array, passed to a call,
+ * returned or thrown. Calling the constructor of java/lang/Object is the
+ * only call that does not count.
+ */
+final class LocalObjects {
+
+  // Field instructions, by their index in the method, on local objects.
+  final BitSet fieldAccesses = new BitSet();
+
+  // Array load and store instructions, by their index in the method, on
+  // local arrays.
+  final BitSet arrayAccesses = new BitSet();
+
+  private LocalObjects() {
+  }
+
+  /**
+   * Returns the accesses of {@code method} to objects that do not escape it,
+   * or null if there are none.
+   */
+  static LocalObjects find(String owner, MethodNode method) {
+    if (!allocatesAndAccesses(method)) {
+      return null;
+    }
+    Origins interpreter = new Origins();
+    Frame[] frames;
+    try {
+      frames = new Analyzer(interpreter).analyze(owner, method);
+    } catch (AnalyzerException e) {
+      return null;
+    }
+    LocalObjects local = new LocalObjects();
+    int fieldInsn = 0;
+    int arrayInsn = 0;
+    for (int i = 0; i < method.instructions.size(); i++) {
+      AbstractInsnNode insn = method.instructions.get(i);
+      int op = insn.getOpcode();
+      if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+        if (op == Opcodes.GETFIELD || op == Opcodes.PUTFIELD) {
+          if (interpreter.isLocal(frames[i], op == Opcodes.GETFIELD ? 1 : 2)) {
+            local.fieldAccesses.set(fieldInsn);
+          }
+        }
+        fieldInsn++;
+      } else if (isArrayLoad(op) || isArrayStore(op)) {
+        if (interpreter.isLocal(frames[i], isArrayLoad(op) ? 2 : 3)) {
+          local.arrayAccesses.set(arrayInsn);
+        }
+        arrayInsn++;
+      }
+    }
+    if (local.fieldAccesses.isEmpty() && local.arrayAccesses.isEmpty()) {
+      return null;
+    }
+    return local;
+  }
+
+  // Cheap check before running the analyzer.
+  private static boolean allocatesAndAccesses(MethodNode method) {
+    boolean allocates = false;
+    boolean accesses = false;
+    for (Iterator<?> it = method.instructions.iterator(); it.hasNext();) {
+      int op = ((AbstractInsnNode) it.next()).getOpcode();
+      allocates |= op == Opcodes.NEW || op == Opcodes.NEWARRAY || op == Opcodes.ANEWARRAY
+          || op == Opcodes.MULTIANEWARRAY;
+      accesses |= op == Opcodes.GETFIELD || op == Opcodes.PUTFIELD
+          || isArrayLoad(op) || isArrayStore(op);
+    }
+    return allocates && accesses;
+  }
+
+  private static boolean isArrayLoad(int op) {
+    return op >= Opcodes.IALOAD && op <= Opcodes.SALOAD;
+  }
+
+  private static boolean isArrayStore(int op) {
+    return op >= Opcodes.IASTORE && op <= Opcodes.SASTORE;
+  }
+
+  /**
+   * The allocations a value may come from.
+   */
+  private static final class Origin implements Value {
+    final int size;
+
+    final Set<AbstractInsnNode> allocations;
+
+    // The value may also come from elsewhere: a parameter, a call, a field.
+    final boolean other;
+
+    Origin(int size, Set<AbstractInsnNode> allocations, boolean other) {
+      this.size = size;
+      this.allocations = allocations;
+      this.other = other;
+    }
+
+    public int getSize() {
+      return size;
+    }
+  }
+
+  /**
+   * Tracks origins of values and records escaping allocations.
+   */
+  private static final class Origins implements Interpreter, Opcodes {
+
+    private static final Origin OTHER = new Origin(1, Collections.<AbstractInsnNode>emptySet(), true);
+
+    private static final Origin OTHER_WIDE =
+        new Origin(2, Collections.<AbstractInsnNode>emptySet(), true);
+
+    private final Set<AbstractInsnNode> escaped = new HashSet<AbstractInsnNode>();
+
+    // Whether the value {@code depth}-th from the top of the stack of
+    // {@code frame} is an object no other thread can see.
+    boolean isLocal(Frame frame, int depth) {
+      if (frame == null) {
+        return false;
+      }
+      Origin value = (Origin) frame.getStack(frame.getStackSize() - depth);
+      if (value.other || value.allocations.isEmpty()) {
+        return false;
+      }
+      for (AbstractInsnNode allocation : value.allocations) {
+        if (escaped.contains(allocation)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public Value newValue(Type type) {
+      if (type == Type.VOID_TYPE) {
+        return null;
+      }
+      return other(type == null ? 1 : type.getSize());
+    }
+
+    public Value newOperation(AbstractInsnNode insn) {
+      switch (insn.getOpcode()) {
+        case NEW:
+          return allocation(insn);
+        case LCONST_0:
+        case LCONST_1:
+        case DCONST_0:
+        case DCONST_1:
+          return OTHER_WIDE;
+        case LDC:
+          Object cst = ((LdcInsnNode) insn).cst;
+          return other(cst instanceof Long || cst instanceof Double ? 2 : 1);
+        case GETSTATIC:
+          return other(Type.getType(((FieldInsnNode) insn).desc).getSize());
+        default:
+          return OTHER;
+      }
+    }
+
+    public Value copyOperation(AbstractInsnNode insn, Value value) {
+      return value;
+    }
+
+    public Value unaryOperation(AbstractInsnNode insn, Value value) {
+      switch (insn.getOpcode()) {
+        case NEWARRAY:
+        case ANEWARRAY:
+          return allocation(insn);
+        case CHECKCAST:
+          return value;
+        case PUTSTATIC:
+        case ARETURN:
+        case ATHROW:
+          escape(value);
+          return OTHER;
+        case LNEG:
+        case DNEG:
+        case I2L:
+        case I2D:
+        case L2D:
+        case F2L:
+        case F2D:
+        case D2L:
+          return OTHER_WIDE;
+        case GETFIELD:
+          return other(Type.getType(((FieldInsnNode) insn).desc).getSize());
+        default:
+          return OTHER;
+      }
+    }
+
+    public Value binaryOperation(AbstractInsnNode insn, Value value1, Value value2) {
+      switch (insn.getOpcode()) {
+        case PUTFIELD:
+          escape(value2);
+          return OTHER;
+        case LALOAD:
+        case DALOAD:
+        case LADD:
+        case DADD:
+        case LSUB:
+        case DSUB:
+        case LMUL:
+        case DMUL:
+        case LDIV:
+        case DDIV:
+        case LREM:
+        case DREM:
+        case LSHL:
+        case LSHR:
+        case LUSHR:
+        case LAND:
+        case LOR:
+        case LXOR:
+          return OTHER_WIDE;
+        default:
+          return OTHER;
+      }
+    }
+
+    public Value ternaryOperation(
+        AbstractInsnNode insn, Value value1, Value value2, Value value3) {
+      if (insn.getOpcode() == AASTORE) {
+        escape(value3);
+      }
+      return OTHER;
+    }
+
+    // Raw as in Interpreter, ASM 3 is not generic.
+    @SuppressWarnings("rawtypes")
+    public Value naryOperation(AbstractInsnNode insn, List values) {
+      if (insn.getOpcode() == MULTIANEWARRAY) {
+        return allocation(insn);
+      }
+      MethodInsnNode call = (MethodInsnNode) insn;
+      boolean objectInit = call.getOpcode() == INVOKESPECIAL
+          && call.owner.equals("java/lang/Object") && call.name.equals("<init>");
+      if (!objectInit) {
+        for (Object value : values) {
+          escape((Value) value);
+        }
+      }
+      return other(Type.getReturnType(call.desc).getSize());
+    }
+
+    public void returnOperation(AbstractInsnNode insn, Value value, Value expected) {
+    }
+
+    public Value merge(Value v, Value w) {
+      Origin a = (Origin) v;
+      Origin b = (Origin) w;
+      if (a.size == b.size && (a.other || !b.other)
+          && a.allocations.containsAll(b.allocations)) {
+        return a;
+      }
+      Set<AbstractInsnNode> allocations = new HashSet<AbstractInsnNode>(a.allocations);
+      allocations.addAll(b.allocations);
+      return new Origin(Math.min(a.size, b.size), allocations, a.other || b.other);
+    }
+
+    private void escape(Value value) {
+      escaped.addAll(((Origin) value).allocations);
+    }
+
+    private static Origin allocation(AbstractInsnNode insn) {
+      return new Origin(1, Collections.singleton(insn), false);
+    }
+
+    private static Origin other(int size) {
+      return size == 2 ? OTHER_WIDE : OTHER;
+    }
+  }
+}
@@ -23,8 +23,8 @@ import org.objectweb.asm.commons.AdviceAdapter;
 import org.objectweb.asm.commons.LocalVariablesSorter;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Transforms all method bodies.
@@ -41,7 +41,11 @@ public class MethodTransformer extends AdviceAdapter {
   private final String className;
   private final CodePos codePos;
   private final DescrCallback lazyDescr;
-  private final Set<String> volatileFields;
+  private final FieldFlags fieldFlags;
+  private final Scope scope;
+  private final Suppressions suppressions;
+  private final String internalName;
+  private final boolean frameSuppressed;
   private final boolean methodIsStatic;
   private final List<ExceptionTableEntry> exceptionTableTop, exceptionTableBottom;
 
@@ -85,9 +89,39 @@ public class MethodTransformer extends AdviceAdapter {
 
   private int line;
 
+  // Field and array instructions, by their index in the method among the
+  // instructions of the kind, that need no event.
+  private final BitSet skippedFields = new BitSet();
+
+  private final BitSet skippedArrays = new BitSet();
+
+  private int fieldInsns;
+
+  private int arrayInsns;
+
+  // Id of the method for the sampler, if it is sampled by executions.
+  private int sampledMethod = -1;
+
+  // Whether field and array access events are written in sampled time
+  // periods only.
+  private boolean sampledByPeriods;
+
+  // Start of the copy of the method with sync events only, if sampled.
+  private Label syncOnlyCopy;
+
+  // Whether plain field and array accesses have no events at all.
+  private boolean accessesSkipped;
+
+  // Learns which method each pc is in, if hot methods are looked for.
+  private HotMethods hotMethods;
+
+  // The method as "class.name" and its descriptor for hotMethods.
+  private String hotMethodKey;
+
   public MethodTransformer(Agent agent, MethodVisitor mv,
       int acc, String name, String fullName, String desc, String src, String className,
-      MethodMapping methods, CodePos codePos, Set<String> volatileFields) {
+      MethodMapping methods, CodePos codePos, FieldFlags fieldFlags, Scope scope,
+      Suppressions suppressions) {
     super(mv, acc, name, desc);
     this.agent = agent;
     this.fullName = fullName;
@@ -96,7 +130,12 @@ public class MethodTransformer extends AdviceAdapter {
     this.methodName = name;
     this.className = className;
     this.codePos = codePos;
-    this.volatileFields = volatileFields;
+    this.fieldFlags = fieldFlags;
+    this.scope = scope;
+    this.suppressions = suppressions;
+    this.internalName = className.substring(1, className.length() - 1);
+    this.frameSuppressed = !name.equals("<init>") && !name.equals("<clinit>")
+        && suppressions.suppressesFrame(internalName, name);
     this.methodIsStatic = ((acc & Opcodes.ACC_STATIC) != 0);
     lazyDescr = new DescrCallback();
     exceptionTableTop = new ArrayList<ExceptionTableEntry>();
@@ -107,6 +146,60 @@ public class MethodTransformer extends AdviceAdapter {
     localVarsSorter = lvs;
   }
 
+  /**
+   * Skips events for the field instructions in {@code fields}, numbered in
+   * the order they are visited. Null skips nothing.
+   */
+  public void skipFieldAccesses(BitSet fields) {
+    if (fields != null) {
+      skippedFields.or(fields);
+    }
+  }
+
+  /**
+   * Skips events for the array load and store instructions in
+   * {@code arrays}, numbered in the order they are visited.
+   */
+  public void skipArrayAccesses(BitSet arrays) {
+    if (arrays != null) {
+      skippedArrays.or(arrays);
+    }
+  }
+
+  /**
+   * Makes the method run the copy starting at {@code syncOnly} instead of
+   * the fully instrumented body when the sampler skips the execution.
+   */
+  public void sampleMethod(int method, Label syncOnly) {
+    sampledMethod = method;
+    syncOnlyCopy = syncOnly;
+  }
+
+  /**
+   * Writes field and array access events only in sampled time periods. The
+   * period is checked at every access rather than on entry, so that code
+   * running for long, a loop for one, follows the periods too.
+   */
+  public void sampleByPeriods() {
+    sampledByPeriods = true;
+  }
+
+  /**
+   * Skips events for all field and array accesses but volatile ones, the
+   * method keeps its sync events only.
+   */
+  public void skipAccesses() {
+    accessesSkipped = true;
+  }
+
+  /**
+   * Registers the pcs of the method with {@code h}.
+   */
+  public void registerPcs(HotMethods h) {
+    hotMethods = h;
+    hotMethodKey = internalName + "." + methodName + methodDesc;
+  }
+
   private static boolean isArrayStore(int opcode) {
     return contains(storeOpcodes, opcode);
   }
@@ -131,6 +224,9 @@ public class MethodTransformer extends AdviceAdapter {
       push(codePos.incMethodEnterPC());
       captureMethodEnter();
     }
+    if (frameSuppressed) {
+      visitListenerCall("suppressEnter", "()V");
+    }
     if ((methodAccess & Opcodes.ACC_SYNCHRONIZED) != 0) {
       if (methodIsStatic) {
         Type classType = Type.getType(className);
@@ -158,11 +254,16 @@ public class MethodTransformer extends AdviceAdapter {
     for (ExceptionTableEntry t : exceptionTableBottom) {
       mv.visitTryCatchBlock(t.getStart(), t.getEnd(), t.getTarget(), t.getType());
     }
-    Label endFinally = new Label();
-    mv.visitTryCatchBlock(startFinally, endFinally, endFinally, null);
-    mv.visitLabel(endFinally);
-    onFinally();
-    mv.visitInsn(ATHROW);
+    // Constructors have nothing to do in the finally block, and a handler
+    // covering the code before the super constructor call fails
+    // verification.
+    if (!methodName.equals("<init>")) {
+      Label endFinally = new Label();
+      mv.visitTryCatchBlock(startFinally, endFinally, endFinally, null);
+      mv.visitLabel(endFinally);
+      onFinally();
+      mv.visitInsn(ATHROW);
+    }
     mv.visitMaxs(maxStack + 3, maxLocals);
   }
 
@@ -179,17 +280,64 @@ public class MethodTransformer extends AdviceAdapter {
       push(genCodePosition());
       captureMonitorExit();
     } else if (isArrayStore(opcode)) {
-      captureArrayStore(opcode);
+      if (!skippedArrays.get(arrayInsns++) && !accessesSkipped) {
+        captureArrayStore(opcode);
+      }
     } else if (isArrayLoad(opcode)) {
-      captureArrayLoad(opcode);
+      if (!skippedArrays.get(arrayInsns++) && !accessesSkipped) {
+        captureArrayLoad(opcode);
+      }
     }
     super.visitInsn(opcode);
   }
 
+  @Override
+  public void visitIntInsn(int opcode, int operand) {
+    super.visitIntInsn(opcode, operand);
+    if (opcode == NEWARRAY) {
+      visitArrayAllocation();
+    }
+  }
+
+  @Override
+  public void visitTypeInsn(int opcode, String type) {
+    super.visitTypeInsn(opcode, type);
+    if (opcode == ANEWARRAY) {
+      visitArrayAllocation();
+    }
+  }
+
+  @Override
+  public void visitMultiANewArrayInsn(String desc, int dims) {
+    super.visitMultiANewArrayInsn(desc, dims);
+    visitArrayAllocation();
+  }
+
+  // Marks the new array on the stack if its accesses are suppressed.
+  private void visitArrayAllocation() {
+    if (suppressions.hasArrays() && suppressions.suppressesArray(internalName, methodName, line)) {
+      dup();
+      visitListenerCall("suppressArray", "(Ljava/lang/Object;)V");
+    }
+  }
+
   @Override
   public void visitCode() {
     super.visitCode();
     mv.visitLabel(startFinally);
+    if (sampledMethod >= 0) {
+      // The sampler is asked in sampled periods only, the accesses of other
+      // ones have no events anyway.
+      Label body = new Label();
+      if (sampledByPeriods) {
+        mv.visitFieldInsn(GETSTATIC, "org/jtsan/EventListener", "sampledPeriod", "Z");
+        mv.visitJumpInsn(IFEQ, body);
+      }
+      push(sampledMethod);
+      visitListenerCall("sample", "(I)Z");
+      mv.visitJumpInsn(IFEQ, syncOnlyCopy);
+      mv.visitLabel(body);
+    }
   }
 
   @Override
@@ -200,6 +348,9 @@ public class MethodTransformer extends AdviceAdapter {
   }
 
   private void onFinally() {
+    if (frameSuppressed) {
+      visitListenerCall("suppressExit", "()V");
+    }
     if ((methodAccess & Opcodes.ACC_SYNCHRONIZED) != 0) {
       if (methodIsStatic) {
         Type classType = Type.getType(className);
@@ -228,15 +379,19 @@ public class MethodTransformer extends AdviceAdapter {
 
 
   class DescrCallback {
-    public String getDescr() { return fullName + " " + srcFile + " " + line; }
-  }
+    public String getMethod() { return fullName; }
 
-  private long genCodePosition() {
-    return codePos.incPC(lazyDescr);
+    public String getFile() { return srcFile; }
+
+    public int getLine() { return line; }
   }
 
-  private boolean isVolatileField(String fname) {
-    return volatileFields.contains(fname);
+  private long genCodePosition() {
+    long pc = codePos.incPC(lazyDescr);
+    if (hotMethods != null) {
+      hotMethods.register(pc, hotMethodKey);
+    }
+    return pc;
   }
 
   private void visitObjectFieldAccess(
@@ -246,36 +401,55 @@ public class MethodTransformer extends AdviceAdapter {
     if (isWrite) {
       saver.initFromTypeDesc(desc);
       saver.saveStack();
-      dup();
-      push(1);
-    } else {
-      dup();
-      push(0);
     }
-    push(name);
+    Label unsampled = skipUnsampled(isVolatile);
+    dup();
+    push(isWrite);
+    push(FieldIds.get(name));
     push(pc);
     push(isVolatile);
     visitObjectFieldAccessCall();
+    endSkip(unsampled);
     if (isWrite) {
       saver.loadStack();
     }
   }
 
   private void visitObjectFieldAccessCall() {
-    visitListenerCall("objectFieldAccess", "(Ljava/lang/Object;ZLjava/lang/String;JZ)V");
+    visitListenerCall("objectFieldAccess", "(Ljava/lang/Object;ZIJZ)V");
   }
 
   private void visitStaticFieldAccess(String owner, String field, boolean isWrite) {
-    // We pass the full name of the field access to the event listener. In presence of many
-    // classloaders some distinct fields of non-related classes may appear to have the same name.
-    // This may result in some false positives, but very unlikely, since classes from different
-    // classloaders barely share stuff.
-    push(owner);
-    push(field);
+    // We identify the field by its full name. In presence of many classloaders some distinct
+    // fields of non-related classes may appear to have the same name. This may result in some
+    // false positives, but very unlikely, since classes from different classloaders barely
+    // share stuff.
+    boolean isVolatile = fieldFlags.isVolatile(owner, field);
+    Label unsampled = skipUnsampled(isVolatile);
+    push(FieldIds.get(owner + "." + field));
     push(isWrite);
     push(genCodePosition());
-    push(isVolatileField(fullName));
-    visitListenerCall("staticFieldAccess", "(Ljava/lang/String;Ljava/lang/String;ZJZ)V");
+    push(isVolatile);
+    visitListenerCall("staticFieldAccess", "(IZJZ)V");
+    endSkip(unsampled);
+  }
+
+  // Jumps over the access event that follows outside of sampled periods,
+  // see sampleByPeriods(). Volatile accesses are sync events, always kept.
+  private Label skipUnsampled(boolean isVolatile) {
+    if (!sampledByPeriods || isVolatile) {
+      return null;
+    }
+    Label skip = new Label();
+    mv.visitFieldInsn(GETSTATIC, "org/jtsan/EventListener", "sampledPeriod", "Z");
+    mv.visitJumpInsn(IFEQ, skip);
+    return skip;
+  }
+
+  private void endSkip(Label skip) {
+    if (skip != null) {
+      mv.visitLabel(skip);
+    }
   }
 
   @Override
@@ -297,7 +471,13 @@ public class MethodTransformer extends AdviceAdapter {
       isStatic = false;
       isWrite = true;
     }
-    if (!"<init>".equals(methodName) && !"<clinit>".equals(methodName)) {
+    // Final fields are written only while the object or class is
+    // initialized, nobody can race with that.
+    boolean skipped = skippedFields.get(fieldInsns++) || fieldFlags.isFinal(owner, name)
+        || !scope.includesField(owner, name)
+        || ((accessesSkipped || suppressions.suppressesField(owner, name))
+            && !fieldFlags.isVolatile(owner, name));
+    if (!skipped && !"<init>".equals(methodName) && !"<clinit>".equals(methodName)) {
       // The method <init> may save values to fields of an uninitialized object.
       // We cannot pass an 'ininitialized this' to an interceptor without
       // causing a VerifyError. 'Uninitialized this' can be detected using
@@ -310,7 +490,7 @@ public class MethodTransformer extends AdviceAdapter {
         visitStaticFieldAccess(owner, name, isWrite);
       } else {
         if (!methods.isBenignRaceField(owner, name)) {
-          visitObjectFieldAccess(name, desc, isWrite, isVolatileField(owner + "." + name));
+          visitObjectFieldAccess(name, desc, isWrite, fieldFlags.isVolatile(owner, name));
         }
       }
     }
@@ -346,11 +526,13 @@ public class MethodTransformer extends AdviceAdapter {
   private void captureArrayLoad(int opcode) {
     int indexVar = localVarsSorter.newLocal(Type.INT_TYPE);
     mv.visitVarInsn(ISTORE, indexVar);
+    Label unsampled = skipUnsampled(false);
     dup();
     mv.visitVarInsn(ILOAD, indexVar);
     push(0);
     push(genCodePosition());
     visitListenerCall("arrayAccess", "(Ljava/lang/Object;IZJ)V");
+    endSkip(unsampled);
     mv.visitVarInsn(ILOAD, indexVar);
   }
 
@@ -362,11 +544,13 @@ public class MethodTransformer extends AdviceAdapter {
 
     mv.visitVarInsn(slotType.getOpcode(ISTORE), valueVar);
     mv.visitVarInsn(ISTORE, indexVar);
+    Label unsampled = skipUnsampled(false);
     dup();
     mv.visitVarInsn(ILOAD, indexVar);
     push(1);
     push(genCodePosition());
     visitListenerCall("arrayAccess", "(Ljava/lang/Object;IZJ)V");
+    endSkip(unsampled);
     mv.visitVarInsn(ILOAD, indexVar);
     mv.visitVarInsn(slotType.getOpcode(ILOAD), valueVar);
   }
@@ -0,0 +1,319 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every live object a unique id, unlike System.identityHashCode. Ids
+ * fill the high half of addresses: they run from 1 to MAX_ID, 0 stands for
+ * null and the ids above are taken.
+ *
+ * Objects are held weakly in a hash table split into segments. Lookups of
+ * known objects take no lock and allocate nothing: entries are immutable and
+ * a lookup that misses a concurrent insertion retries under the segment
+ * lock. Entries of collected objects are dropped on the next insertion into
+ * their segment, and their ids are announced as freed in batches, so that
+ * the state kept for them can be dropped too. Announced ids are given to new
+ * objects then, before new ones. Should live objects use up all ids anyway,
+ * further objects get NO_ID and a warning is printed.
+ *
+ * Entries also mark objects whose accesses are suppressed, ids stay the
+ * same for all objects.
+ */
+final class ObjectIds {
+
+  private static final int SEGMENTS = 64;
+
+  private static final int INITIAL_BUCKETS = 256;
+
+  // Fewest ids announced as freed at once. Consumers of the announcement
+  // may walk all their state, larger batches make that cheaper per id.
+  private static final int MIN_FREED_BATCH = 4096;
+
+  // The id after NO_ID is the high half of static field addresses.
+  static final long MAX_ID = 0xFFFFFFFDL;
+
+  static final long NO_ID = 0xFFFFFFFEL;
+
+  private static final AtomicLong nextId = new AtomicLong(1);
+
+  private static final Segment[] segments = new Segment[SEGMENTS];
+
+  // Ids of collected objects not announced yet, in all segments.
+  private static final AtomicInteger freed = new AtomicInteger();
+
+  static {
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  private ObjectIds() {
+  }
+
+  static long get(Object obj) {
+    if (obj == null) {
+      return 0;
+    }
+    int hash = System.identityHashCode(obj);
+    hash ^= hash >>> 16;
+    return segments[hash & (SEGMENTS - 1)].get(obj, hash);
+  }
+
+  /**
+   * Gives a new object an id and marks its accesses suppressed. An object
+   * that has an id already keeps it unmarked.
+   */
+  static void suppress(Object obj) {
+    int hash = System.identityHashCode(obj);
+    hash ^= hash >>> 16;
+    segments[hash & (SEGMENTS - 1)].insert(obj, hash, true);
+  }
+
+  static boolean isSuppressed(Object obj) {
+    if (obj == null) {
+      return false;
+    }
+    int hash = System.identityHashCode(obj);
+    hash ^= hash >>> 16;
+    Entry e = segments[hash & (SEGMENTS - 1)].find(obj, hash);
+    return e != null && e.suppressed;
+  }
+
+  // Announces the freed ids once there are enough of them, a quarter of the
+  // live ids or more.
+  private static void announceFreed() {
+    int n = freed.get();
+    if (n < MIN_FREED_BATCH) {
+      return;
+    }
+    long live = 0;
+    for (Segment s : segments) {
+      live += s.size;
+    }
+    if (n < live / 4) {
+      return;
+    }
+    synchronized (ObjectIds.class) {
+      n = freed.get();
+      if (n < MIN_FREED_BATCH) {
+        // Announced by another thread meanwhile.
+        return;
+      }
+      long[] ids = new long[n];
+      n = 0;
+      for (Segment s : segments) {
+        n = s.takeFreed(ids, n);
+      }
+      freed.addAndGet(-n);
+      EventListener.objectsFreed(ids, n);
+      // Handed back in shares, to be reused by insertions into any segment.
+      int share = (n + SEGMENTS - 1) / SEGMENTS;
+      for (int i = 0; i < SEGMENTS && i * share < n; i++) {
+        segments[i].reuse(ids, i * share, Math.min(n, (i + 1) * share));
+      }
+    }
+  }
+
+  private static long newId() {
+    long id = nextId.getAndIncrement();
+    if (id <= MAX_ID) {
+      return id;
+    }
+    if (id == MAX_ID + 1) {
+      System.err.println("Java Agent: out of object ids, accesses to objects that get"
+          + " no id are not reported.");
+    }
+    return NO_ID;
+  }
+
+  private static final class Entry extends WeakReference<Object> {
+    final int hash;
+
+    final long id;
+
+    final boolean suppressed;
+
+    final Entry next;
+
+    Entry(Object obj, int hash, long id, boolean suppressed, Entry next,
+        ReferenceQueue<Object> queue) {
+      super(obj, queue);
+      this.hash = hash;
+      this.id = id;
+      this.suppressed = suppressed;
+      this.next = next;
+    }
+  }
+
+  private static final class Segment {
+    private volatile Entry[] buckets = new Entry[INITIAL_BUCKETS];
+
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    // Read without the lock for estimates.
+    private volatile int size;
+
+    // Ids of collected objects, to be announced.
+    private long[] freedIds = new long[64];
+
+    private int freedCount;
+
+    // Announced ids, given to new objects first.
+    private long[] reusable = new long[0];
+
+    private int reusableCount;
+
+    long get(Object obj, int hash) {
+      Entry[] b = buckets;
+      for (Entry e = b[(hash >>> 6) & (b.length - 1)]; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == obj) {
+          return e.id;
+        }
+      }
+      long id = insert(obj, hash, false);
+      announceFreed();
+      return id;
+    }
+
+    Entry find(Object obj, int hash) {
+      Entry[] b = buckets;
+      for (Entry e = b[(hash >>> 6) & (b.length - 1)]; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == obj) {
+          return e;
+        }
+      }
+      synchronized (this) {
+        b = buckets;
+        for (Entry e = b[(hash >>> 6) & (b.length - 1)]; e != null; e = e.next) {
+          if (e.hash == hash && e.get() == obj) {
+            return e;
+          }
+        }
+      }
+      return null;
+    }
+
+    synchronized long insert(Object obj, int hash, boolean suppressed) {
+      expunge();
+      Entry[] b = buckets;
+      int i = (hash >>> 6) & (b.length - 1);
+      for (Entry e = b[i]; e != null; e = e.next) {
+        if (e.hash == hash && e.get() == obj) {
+          return e.id;
+        }
+      }
+      long id = reusableCount > 0 ? reusable[--reusableCount] : newId();
+      b[i] = new Entry(obj, hash, id, suppressed, b[i], collected);
+      if (++size > b.length) {
+        grow();
+      }
+      // Publish the new entry to lookups that read the table afterwards.
+      buckets = buckets;
+      return id;
+    }
+
+    private void grow() {
+      Entry[] old = buckets;
+      Entry[] b = new Entry[old.length * 2];
+      for (Entry head : old) {
+        for (Entry e = head; e != null; e = e.next) {
+          Object obj = e.get();
+          if (obj == null) {
+            size--;
+            free(e.id);
+            continue;
+          }
+          int i = (e.hash >>> 6) & (b.length - 1);
+          b[i] = new Entry(obj, e.hash, e.id, e.suppressed, b[i], collected);
+        }
+      }
+      buckets = b;
+    }
+
+    // Entries are immutable, so a chain is rebuilt without the dead entry.
+    private void expunge() {
+      Object ref;
+      while ((ref = collected.poll()) != null) {
+        Entry dead = (Entry) ref;
+        Entry[] b = buckets;
+        int i = (dead.hash >>> 6) & (b.length - 1);
+        Entry head = b[i];
+        boolean found = false;
+        for (Entry e = head; e != null; e = e.next) {
+          if (e == dead) {
+            found = true;
+            break;
+          }
+        }
+        if (!found) {
+          // Already dropped by grow().
+          continue;
+        }
+        Entry rest = dead.next;
+        for (Entry e = head; e != dead; e = e.next) {
+          Object obj = e.get();
+          if (obj == null) {
+            // Collected too, its queued reference will not be found.
+            size--;
+            free(e.id);
+            continue;
+          }
+          rest = new Entry(obj, e.hash, e.id, e.suppressed, rest, collected);
+        }
+        b[i] = rest;
+        size--;
+        free(dead.id);
+      }
+    }
+
+    private void free(long id) {
+      if (id == NO_ID) {
+        return;
+      }
+      if (freedCount == freedIds.length) {
+        long[] grown = new long[freedIds.length * 2];
+        System.arraycopy(freedIds, 0, grown, 0, freedCount);
+        freedIds = grown;
+      }
+      freedIds[freedCount++] = id;
+      freed.incrementAndGet();
+    }
+
+    // Moves freed ids to ids from offset on, returns the offset after them.
+    synchronized int takeFreed(long[] ids, int offset) {
+      int n = Math.min(freedCount, ids.length - offset);
+      freedCount -= n;
+      System.arraycopy(freedIds, freedCount, ids, offset, n);
+      return offset + n;
+    }
+
+    synchronized void reuse(long[] ids, int from, int to) {
+      int n = to - from;
+      if (reusableCount + n > reusable.length) {
+        long[] grown = new long[Math.max(reusable.length * 2, reusableCount + n)];
+        System.arraycopy(reusable, 0, grown, 0, reusableCount);
+        reusable = grown;
+      }
+      System.arraycopy(ids, from, reusable, reusableCount, n);
+      reusableCount += n;
+    }
+  }
+}
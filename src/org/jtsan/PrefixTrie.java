@@ -0,0 +1,130 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+/**
+ * Maps names to values by exact names and by prefixes. A lookup walks the
+ * name once, whatever the number of entries: the value of the name itself
+ * wins, then that of its longest prefix.
+ *
+ * Not thread-safe while it is built, safe to read from many threads after.
+ */
+final class PrefixTrie<V> {
+
+  private static final class Node<V> {
+    private char[] chars = new char[0];
+
+    private Node<V>[] children = newNodes(0);
+
+    // Value of names starting here, and of the name ending here.
+    V prefixValue;
+
+    V exactValue;
+
+    Node<V> child(char c) {
+      for (int i = 0; i < chars.length; i++) {
+        if (chars[i] == c) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    Node<V> addChild(char c) {
+      Node<V> child = child(c);
+      if (child == null) {
+        char[] grownChars = new char[chars.length + 1];
+        System.arraycopy(chars, 0, grownChars, 0, chars.length);
+        Node<V>[] grownChildren = newNodes(children.length + 1);
+        System.arraycopy(children, 0, grownChildren, 0, children.length);
+        child = new Node<V>();
+        grownChars[chars.length] = c;
+        grownChildren[children.length] = child;
+        chars = grownChars;
+        children = grownChildren;
+      }
+      return child;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Node<V>[] newNodes(int size) {
+      return new Node[size];
+    }
+  }
+
+  private final Node<V> root = new Node<V>();
+
+  private boolean empty = true;
+
+  /**
+   * Maps the names starting with {@code prefix} to {@code value}. A later
+   * value for the same prefix replaces the earlier one.
+   */
+  void putPrefix(String prefix, V value) {
+    node(prefix).prefixValue = value;
+    empty = false;
+  }
+
+  /**
+   * Maps {@code name} itself to {@code value}.
+   */
+  void putExact(String name, V value) {
+    node(name).exactValue = value;
+    empty = false;
+  }
+
+  /**
+   * Puts a pattern: a name, or a prefix if it ends with "*".
+   */
+  void put(String pattern, V value) {
+    if (pattern.endsWith("*")) {
+      putPrefix(pattern.substring(0, pattern.length() - 1), value);
+    } else {
+      putExact(pattern, value);
+    }
+  }
+
+  boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * Returns the value of {@code name}, or of its longest prefix with a
+   * value, or null.
+   */
+  V get(String name) {
+    Node<V> node = root;
+    V value = root.prefixValue;
+    for (int i = 0; i < name.length(); i++) {
+      node = node.child(name.charAt(i));
+      if (node == null) {
+        return value;
+      }
+      if (node.prefixValue != null) {
+        value = node.prefixValue;
+      }
+    }
+    return node.exactValue != null ? node.exactValue : value;
+  }
+
+  private Node<V> node(String key) {
+    Node<V> node = root;
+    for (int i = 0; i < key.length(); i++) {
+      node = node.addChild(key.charAt(i));
+    }
+    return node;
+  }
+}
@@ -0,0 +1,230 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Finds field accesses that repeat an earlier access of the same kind to the
+ * same field of the same object, with nothing in between that could order
+ * the thread against others. A detector learns nothing from such an access:
+ * the thread has not synchronized since the first one.
+ *
+ * Methods are scanned in regions of straight-line code. A region ends at a
+ * jump target, an exception handler, an unconditional jump, a call, a
+ * monitor instruction or a volatile access. Objects are told apart by the
+ * local variable holding them, found with a {@code SourceInterpreter}, so a
+ * store to that variable forgets the accesses through it.
+ */
+final class RedundantAccesses {
+
+  private RedundantAccesses() {
+  }
+
+  /**
+   * Returns the indices, among the field instructions of {@code method} in
+   * order, of the accesses that need no event. Returns null if there are
+   * none.
+   */
+  static BitSet find(String owner, MethodNode method, FieldFlags fieldFlags) {
+    if (!hasRepeatedField(method)) {
+      return null;
+    }
+    Frame[] frames;
+    try {
+      frames = new Analyzer(new SourceInterpreter()).analyze(owner, method);
+    } catch (AnalyzerException e) {
+      return null;
+    }
+    Set<LabelNode> entries = entries(method);
+    Set<String> seen = new HashSet<String>();
+    BitSet redundant = new BitSet();
+    // Index of the last store to each local variable.
+    int[] stores = new int[method.maxLocals];
+    Arrays.fill(stores, -1);
+    int fieldInsn = 0;
+    for (int i = 0; i < method.instructions.size(); i++) {
+      AbstractInsnNode insn = method.instructions.get(i);
+      switch (insn.getType()) {
+        case AbstractInsnNode.LABEL:
+          if (entries.contains(insn)) {
+            seen.clear();
+          }
+          break;
+        case AbstractInsnNode.FIELD_INSN:
+          FieldInsnNode field = (FieldInsnNode) insn;
+          if (fieldFlags.isVolatile(field.owner, field.name)) {
+            seen.clear();
+          } else {
+            String key = key(field, frames, i, method, stores);
+            if (key != null && !seen.add(key)) {
+              redundant.set(fieldInsn);
+            }
+          }
+          fieldInsn++;
+          break;
+        case AbstractInsnNode.VAR_INSN:
+          if (insn.getOpcode() == Opcodes.ASTORE) {
+            stores[((VarInsnNode) insn).var] = i;
+            forgetLocal(seen, ((VarInsnNode) insn).var);
+          } else if (insn.getOpcode() == Opcodes.RET) {
+            seen.clear();
+          }
+          break;
+        case AbstractInsnNode.METHOD_INSN:
+        case AbstractInsnNode.TABLESWITCH_INSN:
+        case AbstractInsnNode.LOOKUPSWITCH_INSN:
+          seen.clear();
+          break;
+        case AbstractInsnNode.JUMP_INSN:
+          int op = insn.getOpcode();
+          if (op == Opcodes.GOTO || op == Opcodes.JSR) {
+            seen.clear();
+          }
+          break;
+        case AbstractInsnNode.INSN:
+          switch (insn.getOpcode()) {
+            case Opcodes.MONITORENTER:
+            case Opcodes.MONITOREXIT:
+            case Opcodes.ATHROW:
+            case Opcodes.IRETURN:
+            case Opcodes.LRETURN:
+            case Opcodes.FRETURN:
+            case Opcodes.DRETURN:
+            case Opcodes.ARETURN:
+            case Opcodes.RETURN:
+              seen.clear();
+              break;
+            default:
+              break;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return redundant.isEmpty() ? null : redundant;
+  }
+
+  // Cheap check before running the analyzer.
+  private static boolean hasRepeatedField(MethodNode method) {
+    Set<String> fields = new HashSet<String>();
+    for (Iterator<?> it = method.instructions.iterator(); it.hasNext();) {
+      AbstractInsnNode insn = (AbstractInsnNode) it.next();
+      if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+        FieldInsnNode field = (FieldInsnNode) insn;
+        if (!fields.add(field.getOpcode() + " " + field.owner + "." + field.name)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // Labels control can reach other than by falling through.
+  private static Set<LabelNode> entries(MethodNode method) {
+    Set<LabelNode> entries = new HashSet<LabelNode>();
+    for (Iterator<?> it = method.instructions.iterator(); it.hasNext();) {
+      AbstractInsnNode insn = (AbstractInsnNode) it.next();
+      if (insn instanceof JumpInsnNode) {
+        entries.add(((JumpInsnNode) insn).label);
+      } else if (insn instanceof TableSwitchInsnNode) {
+        entries.add(((TableSwitchInsnNode) insn).dflt);
+        for (Object label : ((TableSwitchInsnNode) insn).labels) {
+          entries.add((LabelNode) label);
+        }
+      } else if (insn instanceof LookupSwitchInsnNode) {
+        entries.add(((LookupSwitchInsnNode) insn).dflt);
+        for (Object label : ((LookupSwitchInsnNode) insn).labels) {
+          entries.add((LabelNode) label);
+        }
+      }
+    }
+    for (Object tcb : method.tryCatchBlocks) {
+      entries.add(((TryCatchBlockNode) tcb).handler);
+    }
+    return entries;
+  }
+
+  /**
+   * Returns "opcode owner.name local" for an access through a local
+   * variable, "opcode owner.name" for a static field, null for the others.
+   */
+  private static String key(
+      FieldInsnNode field, Frame[] frames, int insn, MethodNode method, int[] stores) {
+    String key = field.getOpcode() + " " + field.owner + "." + field.name;
+    int op = field.getOpcode();
+    if (op == Opcodes.GETSTATIC || op == Opcodes.PUTSTATIC) {
+      return key;
+    }
+    // The object is below the value for PUTFIELD.
+    int local = local(frames, insn, op == Opcodes.GETFIELD ? 1 : 2, method, stores);
+    return local < 0 ? null : key + " " + local;
+  }
+
+  // The local variable a stack value was loaded from, looking through DUPs,
+  // or -1 if it is not known or the variable was stored to since the load.
+  // The value is the {@code depth}-th from the top before {@code insn}.
+  private static int local(Frame[] frames, int insn, int depth, MethodNode method, int[] stores) {
+    while (frames[insn] != null) {
+      Frame frame = frames[insn];
+      Set<?> insns = ((SourceValue) frame.getStack(frame.getStackSize() - depth)).insns;
+      if (insns.size() != 1) {
+        return -1;
+      }
+      AbstractInsnNode source = (AbstractInsnNode) insns.iterator().next();
+      if (source.getOpcode() == Opcodes.ALOAD) {
+        int var = ((VarInsnNode) source).var;
+        return method.instructions.indexOf(source) > stores[var] ? var : -1;
+      }
+      if (source.getOpcode() != Opcodes.DUP) {
+        return -1;
+      }
+      insn = method.instructions.indexOf(source);
+      depth = 1;
+    }
+    return -1;
+  }
+
+  private static void forgetLocal(Set<String> seen, int local) {
+    for (Iterator<String> it = seen.iterator(); it.hasNext();) {
+      String[] parts = it.next().split(" ");
+      if (parts.length == 3 && Integer.parseInt(parts[2]) == local) {
+        it.remove();
+      }
+    }
+  }
+}
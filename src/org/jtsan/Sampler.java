@@ -0,0 +1,169 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides, for one thread, which executions of sampled methods run the
+ * fully instrumented body and which run the copy with sync events only.
+ * Also turns full instrumentation on and off for all threads in periods of
+ * wall-clock time, see {@link #startPeriods}.
+ *
+ * Every method starts sampled. Each sampled execution doubles the number of
+ * executions until the next one, up to the period set by the sampling rate,
+ * so code that runs a few times is seen every time and hot code at the rate.
+ * Accesses of hot code cost about the rate of their full cost.
+ *
+ * Used only by its thread, apart from the static configuration.
+ */
+final class Sampler {
+
+  private static final AtomicInteger nextMethod = new AtomicInteger();
+
+  // Longest period between two sampled executions of a method.
+  private static int maxPeriod = 100;
+
+  // Methods this thread ran, by open addressing. Method ids are global, a
+  // table indexed by them would take every thread as much memory as all
+  // methods. Free slots hold -1.
+  private int[] methods = newTable(64);
+
+  // Executions to skip before the next sampled one, by slot.
+  private int[] skips = new int[64];
+
+  // Period used for the last sampled execution, 0 before the first one.
+  private int[] periods = new int[64];
+
+  private int size;
+
+  /**
+   * Sets the lowest rate methods are sampled at, in percent.
+   */
+  static void setRate(double percent) {
+    maxPeriod = Math.max(1, (int) Math.round(100 / percent));
+  }
+
+  /**
+   * Returns an id for a newly sampled method.
+   */
+  static int newMethod() {
+    return nextMethod.getAndIncrement();
+  }
+
+  /**
+   * Makes method ids start from where a previous run stopped, so that ids
+   * baked into cached classes stay unique.
+   */
+  static void startAt(int method) {
+    nextMethod.set(method);
+  }
+
+  static int nextMethod() {
+    return nextMethod.get();
+  }
+
+  /**
+   * Starts a daemon thread that splits time in periods of {@code periodMs}
+   * and makes {@code percent} of them, evenly spread, run fully instrumented
+   * code. Sync events are written in every period. Returns the thread,
+   * interrupting it stops the sampling.
+   */
+  static Thread startPeriods(final double percent, final long periodMs) {
+    Thread periods = new Thread("jtsan-sampling-periods") {
+      @Override
+      public void run() {
+        // The first period is sampled, so is the start of the program.
+        double credit = 100;
+        try {
+          while (true) {
+            boolean sampled = credit >= 100;
+            if (sampled) {
+              credit -= 100;
+            }
+            EventListener.sampledPeriod = sampled;
+            Thread.sleep(periodMs);
+            credit += percent;
+          }
+        } catch (InterruptedException e) {
+          // Exit.
+        }
+      }
+    };
+    periods.setDaemon(true);
+    periods.start();
+    return periods;
+  }
+
+  /**
+   * Returns true if this execution of {@code method} is sampled.
+   */
+  boolean sample(int method) {
+    int i = slot(method);
+    if (methods[i] == -1) {
+      if ((size + 1) * 2 > methods.length) {
+        grow();
+        i = slot(method);
+      }
+      methods[i] = method;
+      size++;
+    }
+    if (skips[i] > 0) {
+      skips[i]--;
+      return false;
+    }
+    int period = Math.min(Math.max(1, periods[i] * 2), maxPeriod);
+    periods[i] = period;
+    skips[i] = period - 1;
+    return true;
+  }
+
+  // The slot of method, or the free slot it goes to.
+  private int slot(int method) {
+    int mask = methods.length - 1;
+    int h = method * 0x9E3779B9;
+    int i = (h ^ (h >>> 16)) & mask;
+    while (methods[i] != -1 && methods[i] != method) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void grow() {
+    int[] oldMethods = methods;
+    int[] oldSkips = skips;
+    int[] oldPeriods = periods;
+    methods = newTable(oldMethods.length * 2);
+    skips = new int[methods.length];
+    periods = new int[methods.length];
+    for (int j = 0; j < oldMethods.length; j++) {
+      if (oldMethods[j] != -1) {
+        int i = slot(oldMethods[j]);
+        methods[i] = oldMethods[j];
+        skips[i] = oldSkips[j];
+        periods[i] = oldPeriods[j];
+      }
+    }
+  }
+
+  private static int[] newTable(int length) {
+    int[] table = new int[length];
+    for (int i = 0; i < length; i++) {
+      table[i] = -1;
+    }
+    return table;
+  }
+}
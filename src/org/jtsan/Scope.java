@@ -0,0 +1,192 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * What the agent instruments: classes, methods of the instrumented classes
+ * and fields whose accesses have events. Everything is in scope unless a
+ * rule excludes it, the built-in rules exclude the classes the agent cannot
+ * instrument.
+ *
+ * A scope file adds rules, one per line:
+ *   include|exclude PATTERN          classes
+ *   include|exclude method PATTERN   methods, as "class.method"
+ *   include|exclude accesses PATTERN methods whose field and array accesses
+ *                                    have events, as "class.method"
+ *   include|exclude field PATTERN    fields, as "class.field"
+ * Classes are written with "." or "/". A pattern ending with "*" matches
+ * the names it is a prefix of, "com.acme.*" for example, and "*" alone
+ * matches everything. In a member pattern the last dot ends the class
+ * name, and a prefix is also a prefix of class names: "com.acme.*" and
+ * "com/acme/*" match all members of the classes of com.acme, and the
+ * former those of a class com.acme too. The most specific pattern decides:
+ * an exact name, then the longest prefix. Rules of the file replace built-in rules with
+ * the same pattern. Lines starting with "#" are comments.
+ *
+ * Rules are kept in prefix tries, a class is looked up in one walk of its
+ * name.
+ */
+final class Scope {
+
+  private final PrefixTrie<Boolean> classes = new PrefixTrie<Boolean>();
+
+  private final PrefixTrie<Boolean> methods = new PrefixTrie<Boolean>();
+
+  private final PrefixTrie<Boolean> accesses = new PrefixTrie<Boolean>();
+
+  private final PrefixTrie<Boolean> fields = new PrefixTrie<Boolean>();
+
+  // The rules read from the file, they change transformed classes.
+  private final StringBuilder source = new StringBuilder();
+
+  /**
+   * Returns the scope of the built-in rules.
+   */
+  static Scope defaults() {
+    Scope scope = new Scope();
+    // Avoids endless recursion.
+    scope.classes.putPrefix("org/jtsan/", false);
+    scope.classes.putPrefix("sun", false);
+
+    // Classes required by EventListener itself. Triggering events in these will
+    // cause endless recursion.
+    scope.classes.putPrefix("java/io/PrintWriter", false);
+    scope.classes.putPrefix("java/lang/AbstractStringBuilder", false);
+    scope.classes.putPrefix("java/lang/Boolean", false);
+    scope.classes.putPrefix("java/lang/Class", false);
+    scope.classes.putPrefix("java/lang/Long", false);
+    scope.classes.putPrefix("java/lang/String", false);
+    scope.classes.putPrefix("java/lang/StringBuilder", false);
+    scope.classes.putPrefix("java/lang/System", false);
+
+    // Exclusions to workaround HotSpot internal failures.
+    scope.classes.putPrefix("java/io/", false);
+    scope.classes.putPrefix("java/lang/Thread", false);
+    scope.classes.putPrefix("java/lang/ref/", false);
+    scope.classes.putPrefix("java/lang/reflect/", false);
+    scope.classes.putPrefix("java/nio/", false);
+    scope.classes.putPrefix("java/util/Arrays", false);
+
+    // Exclude some internals of java.util.concurrent to avoid false report.
+    // TimeUnit is enum. TimeUnit<init>:71 provoke false positive in tryLock test.
+    scope.classes.putPrefix("java/util/concurrent/TimeUnit", false);
+    // ReentrantReadWriteLock$Sync provoke false positive in tryLock and readAndWriteLocks tests.
+    scope.classes.putPrefix("java/util/concurrent/locks/ReentrantReadWriteLock", false);
+    // AbstractQueuedSynchronizer$ConditionObject provoke false positive in cyclicBarrier test.
+    scope.classes.putPrefix("java/util/concurrent/locks/AbstractQueuedSynchronizer", false);
+    return scope;
+  }
+
+  /**
+   * Adds the rules of {@code file} to the built-in ones.
+   */
+  static Scope load(File file) throws IOException {
+    Scope scope = defaults();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        if (!scope.add(line.split("\\s+"))) {
+          System.err.println("Java Agent: ignoring scope line: " + line);
+        } else {
+          scope.source.append(line).append('\n');
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return scope;
+  }
+
+  private boolean add(String[] rule) {
+    if (rule.length < 2 || rule.length > 3
+        || !(rule[0].equals("include") || rule[0].equals("exclude"))) {
+      return false;
+    }
+    Boolean included = rule[0].equals("include");
+    if (rule.length == 2) {
+      classes.put(rule[1].replace('.', '/'), included);
+      return true;
+    }
+    PrefixTrie<Boolean> members;
+    if (rule[1].equals("method")) {
+      members = methods;
+    } else if (rule[1].equals("accesses")) {
+      members = accesses;
+    } else if (rule[1].equals("field")) {
+      members = fields;
+    } else {
+      return false;
+    }
+    String[] patterns = memberPatterns(rule[2]);
+    for (String pattern : patterns) {
+      members.put(pattern, included);
+    }
+    return patterns.length > 0;
+  }
+
+  /**
+   * Returns the keys of a "class.member" pattern, none if it is not one.
+   * "a.b.C.m*" is "a/b/C.m*", the last dot ends the class name. A pattern
+   * ending with "*" is also a prefix of class names: "com.acme.*" is both
+   * "com/acme.*" and "com/acme/*", "com/acme/*" only the latter.
+   */
+  static String[] memberPatterns(String pattern) {
+    int dot = pattern.lastIndexOf('.');
+    String member = dot > 0
+        ? pattern.substring(0, dot).replace('.', '/') + pattern.substring(dot) : null;
+    if (!pattern.endsWith("*")) {
+      return member != null ? new String[] {member} : new String[0];
+    }
+    String classes = pattern.replace('.', '/');
+    return member != null ? new String[] {member, classes} : new String[] {classes};
+  }
+
+  boolean includesClass(String className) {
+    return !Boolean.FALSE.equals(classes.get(className));
+  }
+
+  boolean includesMethod(String className, String method) {
+    return methods.isEmpty() || !Boolean.FALSE.equals(methods.get(className + "." + method));
+  }
+
+  /**
+   * Returns false for methods that keep sync events only.
+   */
+  boolean includesAccesses(String className, String method) {
+    return accesses.isEmpty() || !Boolean.FALSE.equals(accesses.get(className + "." + method));
+  }
+
+  boolean includesField(String owner, String field) {
+    return fields.isEmpty() || !Boolean.FALSE.equals(fields.get(owner + "." + field));
+  }
+
+  /**
+   * Returns the rules of the scope file, for keys of cached classes.
+   */
+  String source() {
+    return source.toString();
+  }
+}
@@ -0,0 +1,144 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Known benign races, read from a suppression file. Accesses they cover get
+ * no events, instead of reports being filtered later, so they cost neither
+ * time nor trace space. One suppression per line:
+ *   field PATTERN    accesses to fields, as "class.field"
+ *   method PATTERN   accesses in methods, as "class.method"
+ *   frame PATTERN    accesses while a method is on the stack of the thread,
+ *                    as "class.method"
+ *   array PATTERN    accesses to arrays allocated in methods, as
+ *                    "class.method" or "class.method:line"
+ * Classes are written with "." or "/", a pattern ending with "*" matches
+ * the names it is a prefix of, as in scope member rules: "com.acme.*"
+ * covers all classes of com.acme. Lines starting with "#" are comments.
+ *
+ * Volatile accesses order threads and always have events. Frame patterns
+ * do not apply to constructors and static initializers.
+ */
+final class Suppressions {
+
+  private final PrefixTrie<Boolean> fields = new PrefixTrie<Boolean>();
+
+  private final PrefixTrie<Boolean> methods = new PrefixTrie<Boolean>();
+
+  private final PrefixTrie<Boolean> frames = new PrefixTrie<Boolean>();
+
+  private final PrefixTrie<Boolean> arrays = new PrefixTrie<Boolean>();
+
+  // The suppressions read, they change transformed classes.
+  private final StringBuilder source = new StringBuilder();
+
+  /**
+   * Returns a database that suppresses nothing.
+   */
+  static Suppressions none() {
+    return new Suppressions();
+  }
+
+  static Suppressions load(File file) throws IOException {
+    Suppressions suppressions = new Suppressions();
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        if (!suppressions.add(line.split("\\s+"))) {
+          System.err.println("Java Agent: ignoring suppression: " + line);
+        } else {
+          suppressions.source.append(line).append('\n');
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return suppressions;
+  }
+
+  private boolean add(String[] suppression) {
+    if (suppression.length != 2) {
+      return false;
+    }
+    String kind = suppression[0];
+    PrefixTrie<Boolean> members;
+    if (kind.equals("field")) {
+      members = fields;
+    } else if (kind.equals("method")) {
+      members = methods;
+    } else if (kind.equals("frame")) {
+      members = frames;
+    } else if (kind.equals("array")) {
+      members = arrays;
+    } else {
+      return false;
+    }
+    String[] patterns = Scope.memberPatterns(suppression[1]);
+    for (String pattern : patterns) {
+      members.put(pattern, true);
+    }
+    return patterns.length > 0;
+  }
+
+  boolean isEmpty() {
+    return source.length() == 0;
+  }
+
+  boolean suppressesField(String owner, String field) {
+    return !fields.isEmpty() && fields.get(owner + "." + field) != null;
+  }
+
+  boolean suppressesMethod(String className, String method) {
+    return !methods.isEmpty() && methods.get(className + "." + method) != null;
+  }
+
+  boolean suppressesFrame(String className, String method) {
+    return !frames.isEmpty() && frames.get(className + "." + method) != null;
+  }
+
+  boolean hasFrames() {
+    return !frames.isEmpty();
+  }
+
+  boolean hasArrays() {
+    return !arrays.isEmpty();
+  }
+
+  /**
+   * Whether arrays allocated at {@code line} of a method are suppressed.
+   */
+  boolean suppressesArray(String className, String method, int line) {
+    String site = className + "." + method;
+    return arrays.get(site + ":" + line) != null || arrays.get(site) != null;
+  }
+
+  /**
+   * Returns the suppressions read, for keys of cached classes.
+   */
+  String source() {
+    return source.toString();
+  }
+}
@@ -0,0 +1,153 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.commons.EmptyVisitor;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Appends to a method a second copy of its body, entered from a sampling
+ * check at the start of the method. The copy keeps everything the original
+ * has except field and array access events: calls, monitors and volatile
+ * accesses are instrumented in both, so the happens-before order of the
+ * thread is complete whichever copy runs.
+ *
+ * Constructors and static initializers are not copied, they access fields
+ * without events anyway. Neither are methods that would grow too long.
+ */
+final class SyncOnlyCopy {
+
+  // Largest original code copied, instrumentation makes a method several
+  // times longer and both copies must fit in 64K.
+  private static final int MAX_CODE_SIZE = 8 * 1024;
+
+  // Where the copy starts.
+  final LabelNode start = new LabelNode();
+
+  // Field instructions of the copy that need no event, numbered as in
+  // {@code MethodTransformer.skipFieldAccesses}.
+  final BitSet fieldAccesses = new BitSet();
+
+  // All array load and store instructions of the copy.
+  final BitSet arrayAccesses = new BitSet();
+
+  private SyncOnlyCopy() {
+  }
+
+  /**
+   * Appends the copy to {@code method}. Returns null if the method is not
+   * copied.
+   */
+  @SuppressWarnings("unchecked") // The lists of MethodNode are raw in ASM 3.
+  static SyncOnlyCopy append(MethodNode method, FieldFlags fieldFlags) {
+    if (method.name.equals("<init>") || method.name.equals("<clinit>")
+        || !hasAccesses(method, fieldFlags) || codeSize(method) > MAX_CODE_SIZE) {
+      return null;
+    }
+    Map<LabelNode, LabelNode> labels = new HashMap<LabelNode, LabelNode>();
+    for (Iterator<?> it = method.instructions.iterator(); it.hasNext();) {
+      AbstractInsnNode insn = (AbstractInsnNode) it.next();
+      if (insn instanceof LabelNode) {
+        labels.put((LabelNode) insn, new LabelNode());
+      }
+    }
+    SyncOnlyCopy copy = new SyncOnlyCopy();
+    InsnList body = new InsnList();
+    body.add(copy.start);
+    int fieldInsn = 0;
+    int arrayInsn = 0;
+    for (Iterator<?> it = method.instructions.iterator(); it.hasNext();) {
+      AbstractInsnNode insn = (AbstractInsnNode) it.next();
+      if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+        fieldInsn++;
+      } else if (isArrayAccess(insn.getOpcode())) {
+        arrayInsn++;
+      }
+      body.add(insn.clone(labels));
+    }
+    for (Iterator<?> it = body.iterator(); it.hasNext();) {
+      AbstractInsnNode insn = (AbstractInsnNode) it.next();
+      if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+        FieldInsnNode field = (FieldInsnNode) insn;
+        if (!fieldFlags.isVolatile(field.owner, field.name)) {
+          copy.fieldAccesses.set(fieldInsn);
+        }
+        fieldInsn++;
+      } else if (isArrayAccess(insn.getOpcode())) {
+        copy.arrayAccesses.set(arrayInsn++);
+      }
+    }
+    method.instructions.add(body);
+
+    int blocks = method.tryCatchBlocks.size();
+    for (int i = 0; i < blocks; i++) {
+      TryCatchBlockNode block = (TryCatchBlockNode) method.tryCatchBlocks.get(i);
+      method.tryCatchBlocks.add(new TryCatchBlockNode(labels.get(block.start),
+          labels.get(block.end), labels.get(block.handler), block.type));
+    }
+    if (method.localVariables != null) {
+      int locals = method.localVariables.size();
+      for (int i = 0; i < locals; i++) {
+        LocalVariableNode local = (LocalVariableNode) method.localVariables.get(i);
+        method.localVariables.add(new LocalVariableNode(local.name, local.desc,
+            local.signature, labels.get(local.start), labels.get(local.end), local.index));
+      }
+    }
+    return copy;
+  }
+
+  // Whether any access of the method would have an event.
+  private static boolean hasAccesses(MethodNode method, FieldFlags fieldFlags) {
+    for (Iterator<?> it = method.instructions.iterator(); it.hasNext();) {
+      AbstractInsnNode insn = (AbstractInsnNode) it.next();
+      if (isArrayAccess(insn.getOpcode())) {
+        return true;
+      }
+      if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+        FieldInsnNode field = (FieldInsnNode) insn;
+        if (!fieldFlags.isVolatile(field.owner, field.name)
+            && !fieldFlags.isFinal(field.owner, field.name)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int codeSize(MethodNode method) {
+    CodeSizeEvaluator size = new CodeSizeEvaluator(new EmptyVisitor());
+    method.instructions.accept(size);
+    return size.getMaxSize();
+  }
+
+  private static boolean isArrayAccess(int op) {
+    return (op >= Opcodes.IALOAD && op <= Opcodes.SALOAD)
+        || (op >= Opcodes.IASTORE && op <= Opcodes.SASTORE);
+  }
+}
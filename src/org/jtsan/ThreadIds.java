@@ -0,0 +1,291 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * Hands out dense tids, the lowest free one first, instead of
+ * Thread.getId() which only grows. A thread gets its tid when its parent
+ * starts it or on its first event, and caches it in a thread local.
+ *
+ * A tid is recycled after the thread is joined and collected, and only for
+ * a thread that the joiner starts. The new thread inherits the clock of the
+ * joiner, which orders everything the previous thread did before it. Until
+ * the thread is collected its entry stays, so that joining it again finds
+ * the same tid. A thread collected without a join keeps its tid unused: it
+ * may have raced with whatever thread would get the tid next, and sharing a
+ * clock would hide that.
+ *
+ * Only classes the agent does not instrument are used here, events from
+ * inside would ask for a tid again.
+ */
+final class ThreadIds {
+
+  private static final ThreadLocal<Entry> current = new ThreadLocal<Entry>();
+
+  private static final ReferenceQueue<Thread> collected = new ReferenceQueue<Thread>();
+
+  // Registered threads, chained by identity hash.
+  private static Entry[] table = new Entry[64];
+
+  private static int size;
+
+  // Recycled tids in descending order, used before new ones, and the tids
+  // of the threads that joined them.
+  private static int[] free = new int[16];
+
+  private static int[] joiners = new int[16];
+
+  private static int freeCount;
+
+  private static int nextTid;
+
+  private ThreadIds() {
+  }
+
+  static int current() {
+    Entry e = current.get();
+    if (e == null) {
+      e = register(Thread.currentThread(), -1);
+      current.set(e);
+    }
+    return e.tid;
+  }
+
+  /**
+   * Returns the shadow call stack of the current thread.
+   */
+  static CallStack stack() {
+    Entry e = current.get();
+    if (e == null) {
+      current();
+      e = current.get();
+    }
+    if (e.stack == null) {
+      e.stack = new CallStack(e.tid);
+    }
+    return e.stack;
+  }
+
+  /**
+   * Returns the sampler of the current thread.
+   */
+  static Sampler sampler() {
+    Entry e = current.get();
+    if (e == null) {
+      current();
+      e = current.get();
+    }
+    if (e.sampler == null) {
+      e.sampler = new Sampler();
+    }
+    return e.sampler;
+  }
+
+  /**
+   * Notes that the current thread entered a method whose accesses are
+   * suppressed, with those of the methods it calls.
+   */
+  static void suppressEnter() {
+    entry().suppressed++;
+  }
+
+  static void suppressExit() {
+    Entry e = entry();
+    // Unbalanced if the method was entered before it was instrumented.
+    if (e.suppressed > 0) {
+      e.suppressed--;
+    }
+  }
+
+  static boolean suppressed() {
+    return entry().suppressed > 0;
+  }
+
+  private static Entry entry() {
+    Entry e = current.get();
+    if (e == null) {
+      current();
+      e = current.get();
+    }
+    return e;
+  }
+
+  /**
+   * Returns the tid of {@code thread}, assigning one if it has none yet.
+   */
+  static int of(Thread thread) {
+    if (thread == Thread.currentThread()) {
+      return current();
+    }
+    return register(thread, -1).tid;
+  }
+
+  /**
+   * Returns the tid of {@code thread}, started by the current thread. It may
+   * be the tid of a thread the current one joined.
+   */
+  static int start(Thread thread) {
+    if (thread == Thread.currentThread()) {
+      return current();
+    }
+    return register(thread, current()).tid;
+  }
+
+  /**
+   * Notes that the current thread joined {@code thread}. Returns true for
+   * the first join, the tid is recycled once the thread is collected.
+   */
+  static boolean release(Thread thread) {
+    int joiner = current();
+    synchronized (ThreadIds.class) {
+      Entry e = register(thread, -1);
+      if (e.joiner >= 0) {
+        return false;
+      }
+      e.joiner = joiner;
+      return true;
+    }
+  }
+
+  // starter is the tid of the thread starting this one, -1 if unknown.
+  private static synchronized Entry register(Thread thread, int starter) {
+    expunge();
+    int hash = System.identityHashCode(thread);
+    int i = hash & (table.length - 1);
+    for (Entry e = table[i]; e != null; e = e.next) {
+      if (e.get() == thread) {
+        return e;
+      }
+    }
+    int tid = reuse(starter);
+    Entry e = new Entry(thread, hash, tid, table[i]);
+    table[i] = e;
+    if (++size > table.length) {
+      grow();
+    }
+    return e;
+  }
+
+  // Drops entries of collected threads and recycles the tids of the joined
+  // ones, the others are not reused.
+  private static void expunge() {
+    Object ref;
+    while ((ref = collected.poll()) != null) {
+      Entry dead = (Entry) ref;
+      int i = dead.hash & (table.length - 1);
+      Entry prev = null;
+      for (Entry e = table[i]; e != null; prev = e, e = e.next) {
+        if (e == dead) {
+          unlink(i, prev, e);
+          if (e.joiner >= 0) {
+            recycle(e.tid, e.joiner);
+          }
+          break;
+        }
+      }
+    }
+  }
+
+  private static void unlink(int i, Entry prev, Entry e) {
+    if (prev == null) {
+      table[i] = e.next;
+    } else {
+      prev.next = e.next;
+    }
+    size--;
+  }
+
+  private static void recycle(int tid, int joiner) {
+    if (freeCount == free.length) {
+      int[] grown = new int[free.length * 2];
+      System.arraycopy(free, 0, grown, 0, freeCount);
+      free = grown;
+      grown = new int[joiners.length * 2];
+      System.arraycopy(joiners, 0, grown, 0, freeCount);
+      joiners = grown;
+    }
+    free[freeCount] = tid;
+    joiners[freeCount] = joiner;
+    freeCount++;
+    // Kept in descending order, so that the lowest tid is reused first.
+    for (int j = freeCount - 1; j > 0 && free[j] > free[j - 1]; j--) {
+      int t = free[j];
+      free[j] = free[j - 1];
+      free[j - 1] = t;
+      t = joiners[j];
+      joiners[j] = joiners[j - 1];
+      joiners[j - 1] = t;
+    }
+  }
+
+  // Takes the lowest tid joined by starter, or a new one.
+  private static int reuse(int starter) {
+    for (int j = freeCount - 1; j >= 0; j--) {
+      if (joiners[j] == starter) {
+        int tid = free[j];
+        freeCount--;
+        System.arraycopy(free, j + 1, free, j, freeCount - j);
+        System.arraycopy(joiners, j + 1, joiners, j, freeCount - j);
+        return tid;
+      }
+    }
+    return nextTid++;
+  }
+
+  private static void grow() {
+    Entry[] grown = new Entry[table.length * 2];
+    for (Entry head : table) {
+      Entry e = head;
+      while (e != null) {
+        Entry next = e.next;
+        int i = e.hash & (grown.length - 1);
+        e.next = grown[i];
+        grown[i] = e;
+        e = next;
+      }
+    }
+    table = grown;
+  }
+
+  private static final class Entry extends WeakReference<Thread> {
+    final int hash;
+
+    final int tid;
+
+    Entry next;
+
+    // Created by the thread itself on its first call.
+    CallStack stack;
+
+    Sampler sampler;
+
+    // Depth of suppressed frames on the stack of the thread.
+    int suppressed;
+
+    // The tid of the first thread that joined this one, -1 if none did.
+    int joiner = -1;
+
+    Entry(Thread thread, int hash, int tid, Entry next) {
+      super(thread, collected);
+      this.hash = hash;
+      this.tid = tid;
+      this.next = next;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.detector;
+
+/**
+ * An epoch c@t is the clock c of thread t packed into a long, tid in the
+ * high half. Clocks start at 1, so {@code NONE} (0@0) never happens.
+ */
+final class Epoch {
+
+  static final long NONE = 0;
+
+  // Marks read states that keep a full vector clock of readers.
+  static final long SHARED = -1;
+
+  private Epoch() {
+  }
+
+  static long make(int tid, int clock) {
+    return ((long) tid << 32) | (clock & 0xFFFFFFFFL);
+  }
+
+  static int tid(long epoch) {
+    return (int) (epoch >>> 32);
+  }
+
+  static int clock(long epoch) {
+    return (int) epoch;
+  }
+
+  /**
+   * Returns true if the epoch happens before or equals the time {@code vc}.
+   */
+  static boolean leq(long epoch, VectorClock vc) {
+    return clock(epoch) <= vc.get(tid(epoch));
+  }
+}
@@ -0,0 +1,373 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.detector;
+
+import org.jtsan.EventListener;
+import org.jtsan.EventType;
+import org.jtsan.writers.EventWriter;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects data races inside the JVM instead of writing events out. Follows
+ * the FastTrack algorithm: every thread keeps a vector clock, locks and
+ * signals carry the clock of their last release, and memory locations
+ * remember only the epoch of the last write and of the last read, falling
+ * back to a vector clock of readers while reads are concurrent. Access
+ * histories are kept off-heap in {@link ShadowMemory}.
+ *
+ * Race reports, one per pair of pcs, and comments go to the output stream.
+ *
+ * See C. Flanagan, S. Freund, "FastTrack: Efficient and Precise Dynamic Race
+ * Detection", PLDI 2009.
+ */
+public class FastTrackDetector implements EventWriter {
+
+  private final ShadowMemory shadow = new ShadowMemory();
+
+  // Clocks of the last releases, locks and signals use separate ids.
+  private final ReleaseClocks locks = new ReleaseClocks();
+  private final ReleaseClocks signals = new ReleaseClocks();
+
+  // Guarded by itself, like the rest of the maps here.
+  private final LongMap<String> codePositions = new LongMap<String>();
+
+  // Pairs of pcs already reported.
+  private final LongMap<Boolean> reported = new LongMap<Boolean>();
+
+  // Objects freed since the batch began, by id, and in order.
+  private final LongMap<Boolean> freed = new LongMap<Boolean>();
+
+  private long[] freedIds = new long[64];
+
+  private int freedCount;
+
+  private final AtomicLong races = new AtomicLong();
+  private final AtomicLong expectedRaces = new AtomicLong();
+
+  // Indexed by tid, replaced when grown.
+  private volatile ThreadState[] threads = new ThreadState[64];
+
+  private PrintWriter out;
+
+  public void setOutputStream(OutputStream outputStream) {
+    out = new PrintWriter(outputStream, false /* auto-flush */);
+  }
+
+  public void writeEvent(EventType type, long tid, long pc, long address, long extra) {
+    switch (type) {
+      case READ:
+        read(thread((int) tid), address, (int) pc);
+        break;
+      case WRITE:
+        write(thread((int) tid), address, (int) pc);
+        break;
+      case READER_LOCK:
+      case WRITER_LOCK:
+        acquire(locks, address, thread((int) tid));
+        break;
+      case UNLOCK:
+        release(locks, address, thread((int) tid));
+        break;
+      case WAIT:
+        acquire(signals, address, thread((int) tid));
+        break;
+      case SIGNAL:
+        release(signals, address, thread((int) tid));
+        break;
+      case THR_START:
+        start((int) tid, (int) extra);
+        break;
+      case THR_JOIN_AFTER:
+        thread((int) tid).vc.join(thread((int) address).vc);
+        break;
+      case FREE:
+        free(address);
+        break;
+      case EXPECT_RACE_BEGIN:
+        thread((int) tid).expectingRace++;
+        break;
+      case EXPECT_RACE_END:
+        thread((int) tid).expectingRace--;
+        break;
+      default:
+        break;
+    }
+  }
+
+  public void writeCodePosition(long pc, String descr) {
+    synchronized (codePositions) {
+      codePositions.put(pc, descr);
+    }
+  }
+
+  public void writeComment(String str, long pc) {
+    synchronized (out) {
+      out.println("#> " + str);
+    }
+  }
+
+  public void flush() {
+    synchronized (out) {
+      out.flush();
+    }
+  }
+
+  public void close() {
+    synchronized (out) {
+      out.println("INFO: " + races.get() + " data races reported, " + expectedRaces.get()
+          + " expected races ignored, " + shadow.size() + " memory locations tracked.");
+      out.close();
+    }
+  }
+
+  private void read(ThreadState t, long address, int pc) {
+    ShadowMemory.Stripe s = shadow.stripe(address);
+    synchronized (s) {
+      int slot = s.slot(address);
+      long e = t.epoch;
+      long read = s.read(slot);
+      if (read == e
+          || (read == Epoch.SHARED && s.readers(slot).get(t.tid) == Epoch.clock(e))) {
+        return;
+      }
+      long write = s.write(slot);
+      if (!Epoch.leq(write, t.vc)) {
+        report("READ", address, t, pc, "WRITE", Epoch.tid(write), s.writePc(slot));
+      }
+      if (read == Epoch.SHARED) {
+        s.readers(slot).set(t.tid, Epoch.clock(e));
+        s.setRead(slot, Epoch.SHARED, pc);
+      } else if (Epoch.leq(read, t.vc)) {
+        s.setRead(slot, e, pc);
+      } else {
+        VectorClock readers = new VectorClock();
+        readers.set(Epoch.tid(read), Epoch.clock(read));
+        readers.set(t.tid, Epoch.clock(e));
+        s.setReaders(slot, readers);
+        s.setRead(slot, Epoch.SHARED, pc);
+      }
+    }
+  }
+
+  private void write(ThreadState t, long address, int pc) {
+    ShadowMemory.Stripe s = shadow.stripe(address);
+    synchronized (s) {
+      int slot = s.slot(address);
+      long e = t.epoch;
+      long write = s.write(slot);
+      if (write == e) {
+        return;
+      }
+      if (!Epoch.leq(write, t.vc)) {
+        report("WRITE", address, t, pc, "WRITE", Epoch.tid(write), s.writePc(slot));
+      }
+      long read = s.read(slot);
+      if (read == Epoch.SHARED) {
+        int reader = s.readers(slot).firstAhead(t.vc);
+        if (reader >= 0) {
+          report("WRITE", address, t, pc, "READ", reader, s.readPc(slot));
+        }
+        s.setReaders(slot, null);
+        s.setRead(slot, Epoch.NONE, s.readPc(slot));
+      } else if (!Epoch.leq(read, t.vc)) {
+        report("WRITE", address, t, pc, "READ", Epoch.tid(read), s.readPc(slot));
+      }
+      s.setWrite(slot, e, pc);
+    }
+  }
+
+  private static void acquire(ReleaseClocks clocks, long id, ThreadState t) {
+    VectorClock released = clocks.get(id, false);
+    if (released != null) {
+      synchronized (released) {
+        t.vc.join(released);
+      }
+    }
+  }
+
+  private static void release(ReleaseClocks clocks, long id, ThreadState t) {
+    VectorClock released = clocks.get(id, true);
+    synchronized (released) {
+      released.join(t.vc);
+    }
+    t.tick();
+  }
+
+  // Objects are freed in batches ended by a FREE of nothing, their state is
+  // dropped at once then: that walks all of the shadow memory. Monitors are
+  // released at the last address of an object, other locks and signals at
+  // its id.
+  private void free(long address) {
+    synchronized (freed) {
+      if (address != 0) {
+        long id = address >>> 32;
+        if (freed.get(id) == null) {
+          freed.put(id, Boolean.TRUE);
+          if (freedCount == freedIds.length) {
+            long[] grown = new long[freedIds.length * 2];
+            System.arraycopy(freedIds, 0, grown, 0, freedCount);
+            freedIds = grown;
+          }
+          freedIds[freedCount++] = id;
+        }
+        return;
+      }
+      if (freedCount == 0) {
+        return;
+      }
+      shadow.evict(freed);
+      for (int i = 0; i < freedCount; i++) {
+        long id = freedIds[i];
+        long monitor = (id << 32) | 0xFFFFFFFFL;
+        locks.remove(monitor);
+        locks.remove(id);
+        signals.remove(monitor);
+        signals.remove(id);
+      }
+      freed.clear();
+      freedCount = 0;
+    }
+  }
+
+  // The parent reports the start of the child before the child runs. A tid
+  // is only reused for a thread started by the joiner of its previous thread,
+  // whose clock covers all of the previous thread. The clock of a tid still
+  // never goes back, so epochs of the two are not mixed up.
+  private void start(int child, int parent) {
+    if (child == parent) {
+      thread(child);
+      return;
+    }
+    ThreadState p = thread(parent);
+    VectorClock vc = new VectorClock(p.vc);
+    ThreadState[] ts = threads;
+    if (child < ts.length && ts[child] != null) {
+      vc.set(child, Math.max(vc.get(child), ts[child].vc.get(child)));
+    }
+    putThread(new ThreadState(child, vc));
+    p.tick();
+  }
+
+  private ThreadState thread(int tid) {
+    ThreadState[] ts = threads;
+    if (tid < ts.length) {
+      ThreadState t = ts[tid];
+      if (t != null) {
+        return t;
+      }
+    }
+    synchronized (this) {
+      ts = threads;
+      if (tid < ts.length && ts[tid] != null) {
+        return ts[tid];
+      }
+      // A thread started without an intercepted Thread.start().
+      ThreadState t = new ThreadState(tid, new VectorClock());
+      putThread(t);
+      return t;
+    }
+  }
+
+  private synchronized void putThread(ThreadState t) {
+    ThreadState[] ts = threads;
+    if (t.tid >= ts.length) {
+      ThreadState[] grown = new ThreadState[Math.max(t.tid + 1, ts.length * 2)];
+      System.arraycopy(ts, 0, grown, 0, ts.length);
+      ts = grown;
+    }
+    ts[t.tid] = t;
+    threads = ts;
+  }
+
+  private void report(String kind, long address, ThreadState t, int pc,
+      String prevKind, int prevTid, int prevPc) {
+    if (t.expectingRace > 0) {
+      expectedRaces.incrementAndGet();
+      return;
+    }
+    long key = pc < prevPc
+        ? ((long) pc << 32) | (prevPc & 0xFFFFFFFFL)
+        : ((long) prevPc << 32) | (pc & 0xFFFFFFFFL);
+    synchronized (reported) {
+      if (reported.get(key) != null) {
+        return;
+      }
+      reported.put(key, Boolean.TRUE);
+    }
+    races.incrementAndGet();
+    synchronized (out) {
+      String field = EventListener.fieldName(address);
+      out.println("WARNING: Possible data race during " + kind + " of 0x"
+          + Long.toHexString(address) + (field != null ? " (" + field + ")" : "") + ":");
+      out.println("  " + kind + " by thread T" + t.tid + " at " + describe(pc));
+      out.println("  previous " + prevKind + " by thread T" + prevTid + " at " + describe(prevPc));
+      out.flush();
+    }
+  }
+
+  private String describe(int pc) {
+    String descr;
+    synchronized (codePositions) {
+      descr = codePositions.get(pc);
+    }
+    if (descr == null) {
+      descr = EventListener.describePc(pc);
+    }
+    return descr != null ? descr : "pc " + Integer.toHexString(pc);
+  }
+
+  /**
+   * Clocks of the last releases by id, spread over lock stripes.
+   */
+  private static final class ReleaseClocks {
+    private static final int STRIPES = 64;
+
+    private final LongMap<?>[] stripes = new LongMap<?>[STRIPES];
+
+    ReleaseClocks() {
+      for (int i = 0; i < STRIPES; i++) {
+        stripes[i] = new LongMap<VectorClock>();
+      }
+    }
+
+    VectorClock get(long id, boolean create) {
+      LongMap<VectorClock> stripe = stripe(id);
+      synchronized (stripe) {
+        VectorClock vc = stripe.get(id);
+        if (vc == null && create) {
+          vc = new VectorClock();
+          stripe.put(id, vc);
+        }
+        return vc;
+      }
+    }
+
+    void remove(long id) {
+      LongMap<VectorClock> stripe = stripe(id);
+      synchronized (stripe) {
+        stripe.remove(id);
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private LongMap<VectorClock> stripe(long id) {
+      return (LongMap<VectorClock>) stripes[(int) (id ^ (id >>> 32)) & (STRIPES - 1)];
+    }
+  }
+}
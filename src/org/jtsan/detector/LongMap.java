@@ -0,0 +1,121 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.detector;
+
+/**
+ * A map from long keys to values with open addressing, not thread-safe.
+ *
+ * The detector runs inside instrumented threads and must not use JDK
+ * collections: classes they load lazily, like tree bins of hash maps, get
+ * instrumented and would report their own accesses back to the detector.
+ */
+class LongMap<V> {
+
+  private long[] keys = new long[16];
+
+  private Object[] values = new Object[16];
+
+  private int size;
+
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    int mask = keys.length - 1;
+    for (int i = index(key, mask); values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return (V) values[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Associates {@code value}, which is not null, with {@code key}.
+   */
+  void put(long key, V value) {
+    int mask = keys.length - 1;
+    int i = index(key, mask);
+    for (; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size * 2 > keys.length) {
+      grow();
+    }
+  }
+
+  /**
+   * Removes {@code key}, shifting back the entries probed after it.
+   */
+  void remove(long key) {
+    int mask = keys.length - 1;
+    int i = index(key, mask);
+    while (values[i] != null && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (values[i] == null) {
+      return;
+    }
+    values[i] = null;
+    size--;
+    for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+      int home = index(keys[j], mask);
+      // Move the entry to the hole unless its home lies cyclically in (i, j].
+      if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        values[j] = null;
+        i = j;
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    keys = new long[16];
+    values = new Object[16];
+    size = 0;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new Object[oldValues.length * 2];
+    int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldValues[j] != null) {
+        int i = index(oldKeys[j], mask);
+        while (values[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  private static int index(long key, int mask) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+}
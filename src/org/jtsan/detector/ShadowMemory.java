@@ -0,0 +1,237 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.detector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Access history of memory locations, kept off the Java heap. Locations are
+ * spread over lock stripes by their id, every stripe is an open addressing
+ * hash table in a direct buffer with one fixed-size slot per location:
+ *
+ * <pre>
+ *   id:8 write:8 read:8 writePc:4 readPc:4
+ * </pre>
+ *
+ * write and read are epochs as in {@link Epoch}. A slot is free while both
+ * are NONE, every access stores at least one of them. Locations whose read
+ * is {@link Epoch#SHARED} keep their vector clock of readers on the heap in
+ * their stripe, concurrent reads are rare compared to epochs.
+ *
+ * Locations of freed objects are evicted in batches, which rebuilds every
+ * table.
+ */
+class ShadowMemory {
+
+  private static final int SLOT_SIZE = 32;
+
+  private static final int ID = 0;
+  private static final int WRITE = 8;
+  private static final int READ = 16;
+  private static final int WRITE_PC = 24;
+  private static final int READ_PC = 28;
+
+  private static final int STRIPES = 64;
+
+  private static final int INITIAL_SLOTS = 1024;
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  ShadowMemory() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Returns the stripe holding {@code id}. Callers synchronize on the stripe
+   * around all accesses to its slots.
+   */
+  Stripe stripe(long id) {
+    return stripes[(int) (mix(id) >>> 58) & (STRIPES - 1)];
+  }
+
+  /**
+   * Returns the number of locations tracked.
+   */
+  long size() {
+    long size = 0;
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        size += s.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Drops the locations of {@code objects}, given by the high half of their
+   * ids.
+   */
+  void evict(LongMap<Boolean> objects) {
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        s.evict(objects);
+      }
+    }
+  }
+
+  private static long mix(long id) {
+    long h = id * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 29);
+  }
+
+  static final class Stripe {
+
+    private ByteBuffer table = newTable(INITIAL_SLOTS);
+
+    private int mask = INITIAL_SLOTS - 1;
+
+    private int size;
+
+    private final LongMap<VectorClock> readers = new LongMap<VectorClock>();
+
+    /**
+     * Returns the offset of the slot of {@code id}, claiming a free one if the
+     * location is new. The offset stays valid until the next call.
+     */
+    int slot(long id) {
+      int i = (int) mix(id) & mask;
+      while (true) {
+        int offset = i * SLOT_SIZE;
+        if (isFree(table, offset)) {
+          break;
+        }
+        if (table.getLong(offset + ID) == id) {
+          return offset;
+        }
+        i = (i + 1) & mask;
+      }
+      if ((size + 1) * 2 > mask + 1) {
+        grow();
+        return slot(id);
+      }
+      size++;
+      int offset = i * SLOT_SIZE;
+      table.putLong(offset + ID, id);
+      return offset;
+    }
+
+    long write(int slot) {
+      return table.getLong(slot + WRITE);
+    }
+
+    int writePc(int slot) {
+      return table.getInt(slot + WRITE_PC);
+    }
+
+    void setWrite(int slot, long epoch, int pc) {
+      table.putLong(slot + WRITE, epoch);
+      table.putInt(slot + WRITE_PC, pc);
+    }
+
+    long read(int slot) {
+      return table.getLong(slot + READ);
+    }
+
+    int readPc(int slot) {
+      return table.getInt(slot + READ_PC);
+    }
+
+    void setRead(int slot, long epoch, int pc) {
+      table.putLong(slot + READ, epoch);
+      table.putInt(slot + READ_PC, pc);
+    }
+
+    /**
+     * Returns the clock of readers, valid while read is SHARED.
+     */
+    VectorClock readers(int slot) {
+      return readers.get(table.getLong(slot + ID));
+    }
+
+    void setReaders(int slot, VectorClock vc) {
+      long id = table.getLong(slot + ID);
+      if (vc == null) {
+        readers.remove(id);
+      } else {
+        readers.put(id, vc);
+      }
+    }
+
+    private void grow() {
+      rehash((mask + 1) * 2, null);
+    }
+
+    void evict(LongMap<Boolean> objects) {
+      int kept = 0;
+      for (int offset = 0; offset < table.capacity(); offset += SLOT_SIZE) {
+        if (isFree(table, offset)) {
+          continue;
+        }
+        long id = table.getLong(offset + ID);
+        if (objects.get(id >>> 32) == null) {
+          kept++;
+        } else if (table.getLong(offset + READ) == Epoch.SHARED) {
+          readers.remove(id);
+        }
+      }
+      if (kept == size) {
+        return;
+      }
+      int slots = mask + 1;
+      while (slots > INITIAL_SLOTS && kept * 8 < slots) {
+        slots /= 2;
+      }
+      rehash(slots, objects);
+      size = kept;
+    }
+
+    // Moves the slots to a table of the given size, but those of evicted
+    // objects.
+    private void rehash(int slots, LongMap<Boolean> evicted) {
+      ByteBuffer old = table;
+      table = newTable(slots);
+      mask = slots - 1;
+      for (int offset = 0; offset < old.capacity(); offset += SLOT_SIZE) {
+        if (isFree(old, offset)
+            || (evicted != null && evicted.get(old.getLong(offset + ID) >>> 32) != null)) {
+          continue;
+        }
+        int i = (int) mix(old.getLong(offset + ID)) & mask;
+        while (!isFree(table, i * SLOT_SIZE)) {
+          i = (i + 1) & mask;
+        }
+        int to = i * SLOT_SIZE;
+        table.putLong(to + ID, old.getLong(offset + ID));
+        table.putLong(to + WRITE, old.getLong(offset + WRITE));
+        table.putLong(to + READ, old.getLong(offset + READ));
+        table.putInt(to + WRITE_PC, old.getInt(offset + WRITE_PC));
+        table.putInt(to + READ_PC, old.getInt(offset + READ_PC));
+      }
+    }
+
+    private static boolean isFree(ByteBuffer table, int offset) {
+      return table.getLong(offset + WRITE) == Epoch.NONE
+          && table.getLong(offset + READ) == Epoch.NONE;
+    }
+
+    private static ByteBuffer newTable(int slots) {
+      return ByteBuffer.allocateDirect(slots * SLOT_SIZE).order(ByteOrder.nativeOrder());
+    }
+  }
+}
@@ -0,0 +1,49 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.detector;
+
+/**
+ * Detector state of one thread. Only the thread itself updates it, other
+ * threads read its clock at start and join, which are ordered by the JVM.
+ */
+class ThreadState {
+
+  final int tid;
+
+  final VectorClock vc;
+
+  // Cached vc.get(tid)@tid.
+  long epoch;
+
+  // Nesting of EXPECT_RACE_BEGIN/END regions.
+  int expectingRace;
+
+  ThreadState(int tid, VectorClock vc) {
+    this.tid = tid;
+    this.vc = vc;
+    vc.set(tid, vc.get(tid) + 1);
+    epoch = Epoch.make(tid, vc.get(tid));
+  }
+
+  /**
+   * Starts a new epoch after a release operation.
+   */
+  void tick() {
+    int clock = vc.get(tid) + 1;
+    vc.set(tid, clock);
+    epoch = Epoch.make(tid, clock);
+  }
+}
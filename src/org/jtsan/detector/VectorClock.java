@@ -0,0 +1,78 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.detector;
+
+import java.util.Arrays;
+
+/**
+ * A vector clock indexed by tid, growing on demand. Not thread-safe, owners
+ * synchronize access where clocks are shared.
+ */
+class VectorClock {
+
+  private int[] clocks;
+
+  VectorClock() {
+    clocks = new int[8];
+  }
+
+  VectorClock(VectorClock other) {
+    clocks = other.clocks.clone();
+  }
+
+  int get(int tid) {
+    return tid < clocks.length ? clocks[tid] : 0;
+  }
+
+  void set(int tid, int clock) {
+    if (tid >= clocks.length) {
+      clocks = Arrays.copyOf(clocks, Math.max(tid + 1, clocks.length * 2));
+    }
+    clocks[tid] = clock;
+  }
+
+  int size() {
+    return clocks.length;
+  }
+
+  /**
+   * Sets every component to the maximum of this and {@code other}.
+   */
+  void join(VectorClock other) {
+    int[] o = other.clocks;
+    if (o.length > clocks.length) {
+      clocks = Arrays.copyOf(clocks, o.length);
+    }
+    for (int i = 0; i < o.length; i++) {
+      if (o[i] > clocks[i]) {
+        clocks[i] = o[i];
+      }
+    }
+  }
+
+  /**
+   * Returns the first tid whose component is ahead of {@code vc}, or -1 if
+   * this clock happens before or equals {@code vc}.
+   */
+  int firstAhead(VectorClock vc) {
+    for (int i = 0; i < clocks.length; i++) {
+      if (clocks[i] > vc.get(i)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
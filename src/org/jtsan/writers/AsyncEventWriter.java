@@ -0,0 +1,283 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import org.jtsan.EventType;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events over to another {@code EventWriter} running in a dedicated
+ * thread, so that instrumented threads do not wait for I/O.
+ *
+ * Events are put into a pre-allocated ring of longs, many producers claim
+ * slots with an atomic counter and a single consumer drains them in order.
+ * The policy decides what a producer does when the ring is full. Only memory
+ * accesses are ever dropped, synchronization events always block, otherwise
+ * the detector would report false races.
+ */
+public class AsyncEventWriter implements EventWriter {
+
+  public enum Policy {
+    // Wait until the consumer frees a slot.
+    BLOCK,
+    // Drop memory accesses while the ring is full.
+    DROP,
+    // Keep every SAMPLE_PERIOD-th memory access while the ring is more than
+    // half full, drop them while it is full.
+    SAMPLE
+  }
+
+  public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+  private static final int SAMPLE_PERIOD = 16;
+
+  // Layout of a slot: type, tid, pc, address, extra.
+  private static final int FIELDS = 5;
+
+  // Pseudo event types for the string-carrying calls and flushes.
+  private static final int CODE_POSITION = -1;
+  private static final int COMMENT = -2;
+  private static final int FLUSH = -3;
+
+  private static final long CLOSE_TIMEOUT_MS = 10000;
+
+  private static final EventType[] TYPES = EventType.values();
+
+  private final EventWriter writer;
+  private final Policy policy;
+  private final int capacity;
+  private final int mask;
+  private final long[] slots;
+  private final String[] strings;
+
+  // Holds seq + 1 for a published slot.
+  private final AtomicLongArray published;
+
+  private final AtomicLong claimed = new AtomicLong();
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private volatile long consumed;
+
+  private volatile boolean running = true;
+
+  // Set by close() when the consumer did not drain the ring in time, the
+  // consumer then leaves the events it has not got to.
+  private volatile boolean stopped;
+
+  // Racy on purpose, it only spreads sampled events.
+  private int sampleTick;
+
+  private Thread consumer;
+
+  public AsyncEventWriter(EventWriter writer, Policy policy, int capacity) {
+    this.writer = writer;
+    this.policy = policy;
+    this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.mask = this.capacity - 1;
+    slots = new long[this.capacity * FIELDS];
+    strings = new String[this.capacity];
+    published = new AtomicLongArray(this.capacity);
+  }
+
+  private class Consumer extends Thread {
+    Consumer() {
+      super("jtsan-async-writer");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      int idle = 0;
+      while (!stopped && (running || consumed < claimed.get())) {
+        long seq = consumed;
+        int slot = (int) (seq & mask);
+        if (published.get(slot) != seq + 1) {
+          idle = backoff(idle);
+          continue;
+        }
+        idle = 0;
+        dispatch(slot);
+        consumed = seq + 1;
+      }
+    }
+  }
+
+  public void setOutputStream(OutputStream outputStream) {
+    writer.setOutputStream(outputStream);
+    consumer = new Consumer();
+    consumer.start();
+  }
+
+  public void writeEvent(EventType type, long tid, long pc, long address, long extra) {
+    if (!running) {
+      return;
+    }
+    long seq = claim(type == EventType.READ || type == EventType.WRITE);
+    if (seq < 0) {
+      if (!stopped) {
+        dropped.incrementAndGet();
+      }
+      return;
+    }
+    int slot = (int) (seq & mask);
+    int base = slot * FIELDS;
+    slots[base] = type.ordinal();
+    slots[base + 1] = tid;
+    slots[base + 2] = pc;
+    slots[base + 3] = address;
+    slots[base + 4] = extra;
+    published.lazySet(slot, seq + 1);
+  }
+
+  public void writeCodePosition(long pc, String descr) {
+    writeString(CODE_POSITION, pc, descr);
+  }
+
+  public void writeComment(String str, long pc) {
+    writeString(COMMENT, pc, str);
+  }
+
+  /**
+   * Makes the consumer flush the writer once it gets to the events written
+   * before this call.
+   */
+  public void flush() {
+    writeString(FLUSH, 0, null);
+  }
+
+  /**
+   * Drains the ring, stops the consumer thread and closes the writer. A
+   * consumer that does not drain the ring in CLOSE_TIMEOUT_MS, waiting for
+   * a slot that is never published or for a slow writer, is stopped. The
+   * writer is closed only after the consumer has finished, it is not safe
+   * to use from two threads.
+   */
+  public synchronized void close() {
+    if (!running) {
+      return;
+    }
+    running = false;
+    boolean interrupted = false;
+    try {
+      consumer.join(CLOSE_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      interrupted = true;
+    }
+    if (consumer.isAlive()) {
+      stopped = true;
+      while (consumer.isAlive()) {
+        try {
+          consumer.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      long left = claimed.get() - consumed;
+      writer.writeComment("Async writer left " + left + " events at close", 0);
+      System.err.println("Java Agent: async writer did not drain in " + CLOSE_TIMEOUT_MS
+          + " ms, left " + left + " events");
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    long n = dropped.get();
+    if (n > 0) {
+      writer.writeComment("Async writer dropped " + n + " memory access events", 0);
+      System.err.println("Java Agent: async writer dropped " + n + " memory access events");
+    }
+    writer.close();
+  }
+
+  private void writeString(int kind, long pc, String str) {
+    if (!running) {
+      return;
+    }
+    long seq = claim(false);
+    if (seq < 0) {
+      return;
+    }
+    int slot = (int) (seq & mask);
+    int base = slot * FIELDS;
+    slots[base] = kind;
+    slots[base + 2] = pc;
+    strings[slot] = str;
+    published.lazySet(slot, seq + 1);
+  }
+
+  /**
+   * Returns the claimed sequence number or -1 if the event is to be dropped.
+   * Blocked producers give up once the consumer is stopped.
+   */
+  private long claim(boolean droppable) {
+    if (!droppable || policy == Policy.BLOCK) {
+      long seq = claimed.getAndIncrement();
+      int idle = 0;
+      while (seq - consumed >= capacity) {
+        if (stopped) {
+          return -1;
+        }
+        idle = backoff(idle);
+      }
+      return seq;
+    }
+    while (true) {
+      long seq = claimed.get();
+      long used = seq - consumed;
+      if (used >= capacity) {
+        return -1;
+      }
+      if (policy == Policy.SAMPLE && used >= capacity / 2
+          && (++sampleTick % SAMPLE_PERIOD) != 0) {
+        return -1;
+      }
+      if (claimed.compareAndSet(seq, seq + 1)) {
+        return seq;
+      }
+    }
+  }
+
+  private void dispatch(int slot) {
+    int base = slot * FIELDS;
+    int kind = (int) slots[base];
+    if (kind == CODE_POSITION) {
+      writer.writeCodePosition(slots[base + 2], strings[slot]);
+      strings[slot] = null;
+    } else if (kind == COMMENT) {
+      writer.writeComment(strings[slot], slots[base + 2]);
+      strings[slot] = null;
+    } else if (kind == FLUSH) {
+      writer.flush();
+    } else {
+      writer.writeEvent(TYPES[kind], slots[base + 1], slots[base + 2],
+          slots[base + 3], slots[base + 4]);
+    }
+  }
+
+  private static int backoff(int idle) {
+    if (idle < 100) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+    }
+    return idle + 1;
+  }
+}
@@ -64,4 +64,14 @@ public class BinAndStrEventWriter implements EventWriter {
     strWriter.writeComment(str, pc);
   }
 
+  public synchronized void flush() {
+    binWriter.flush();
+    strWriter.flush();
+  }
+
+  public synchronized void close() {
+    binWriter.close();
+    strWriter.close();
+  }
+
 }
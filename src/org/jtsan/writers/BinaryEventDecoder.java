@@ -18,86 +18,121 @@ package org.jtsan.writers;
 import org.jtsan.EventType;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 
 /**
- * Convert binary events output to string format.
+ * Convert binary events output to string format. Chunked traces written by
+ * {@code ChunkedEventWriter} are merged back into a single ordered stream.
+ * Segments written by {@code MappedEventWriter} are decoded in turn.
+ * Compressed traces are decompressed first. Code positions kept in a
+ * separate symbol file are printed ahead of the events.
  * Usage:
  * java -cp /path/to/agent.jar org.jtsan.writers.BinaryEventDecoder [Input file] [Output file]
+ *     [Symbol file]
  *
  * @author Sergey Vorobyev
  */
 
 public class BinaryEventDecoder {
 
-  private final DataInputStream in;
+  private DataInputStream in;
   private final PrintWriter out;
   private long lineCount = 0;
 
+  // Records decoded per type, and the counts from the trailer if any.
+  private final long[] decoded = new long[TraceFormat.TYPE_COUNT];
+  private long[] trailer;
+
+  // Set when the decoded records match the trailer counts.
+  private boolean complete;
+
+  // The file {@code in} reads from, if any. Chunked traces need random access.
+  private File inFile;
+
+  // Set for traces without a header, their records have 2-byte tids.
+  private boolean shortTids;
+
+  // Code positions written apart from the trace, if any.
+  private SymbolFile symbols;
+
   public BinaryEventDecoder(InputStream in, OutputStream out) {
     this.in = new DataInputStream(new BufferedInputStream(in));
     this.out = new PrintWriter(out, false /* auto-flush */);
   }
 
+  public BinaryEventDecoder(File in, OutputStream out) throws IOException {
+    this(new FileInputStream(in), out);
+    this.inFile = in;
+  }
+
+  /**
+   * Prints the code positions of {@code symbols} before the events.
+   */
+  public void setSymbols(SymbolFile symbols) {
+    this.symbols = symbols;
+  }
+
   public static void main(String[] args) {
-    InputStream in;
-    OutputStream out;
+    BinaryEventDecoder decoder;
 
     try {
-      if (args.length > 0) {
-        in = new FileInputStream(args[0]);
-      } else {
-        in = System.in;
-      }
-
+      OutputStream out;
       if (args.length > 1) {
         out = new FileOutputStream(args[1]);
       } else {
         out = System.out;
       }
+
+      if (args.length > 0) {
+        decoder = new BinaryEventDecoder(new File(args[0]), out);
+      } else {
+        decoder = new BinaryEventDecoder(System.in, out);
+      }
+      if (args.length > 2) {
+        decoder.setSymbols(SymbolFile.read(new FileInputStream(args[2])));
+      }
     } catch (IOException e) {
       System.err.println("Error: " + BinaryEventDecoder.class +
           ": Could not open input or output stream.");
       System.err.println("Stack trace:");
       e.printStackTrace(System.err);
       System.err.println("Usage: java -cp /path/to/agent.jar " +
-          "org.jtsan.writers.BinaryEventDecoder [Input file] [Output file]");
+          "org.jtsan.writers.BinaryEventDecoder [Input file] [Output file] [Symbol file]");
       return;
     }
 
-    BinaryEventDecoder decoder = new BinaryEventDecoder(in, out);
     decoder.decode();
   }
 
-
+  /**
+   * Returns true if {@link #decode} read a trailer and every record it
+   * counts. A trace cut short, or one without a trailer, is not complete.
+   */
+  public boolean isComplete() {
+    return complete;
+  }
 
   public void decode() {
     try {
-      while (true) {
-        int typeOrd = in.readUnsignedByte();
-        final EventType type = EventType.values()[typeOrd];
-        switch (type) {
-          case PC_DESCRIPTION:
-            processCodePosition();
-            break;
-          case PRINT_MESSAGE:
-            processComment();
-            break;
-          default:
-            processEvent(type);
-            break;
-        }
-        lineCount++;
-      }
+      printSymbols();
+      decodeStream();
+      System.err.println("INFO: " + lineCount + " lines decoded.");
+      verifyTrailer();
     } catch (EOFException e) {
       System.err.println("INFO: " + lineCount + " lines decoded.");
+      verifyTrailer();
     } catch (IOException e) {
       throw new RuntimeException("IO error happened while decoding.", e);
     } finally {
@@ -105,19 +140,173 @@ public class BinaryEventDecoder {
     }
   }
 
-  private void processCodePosition() throws IOException {
+  private void decodeStream() throws IOException {
+    int first = in.read();
+    if (first == TraceFormat.MAGIC) {
+      int version = in.readUnsignedByte();
+      if (version == TraceFormat.VERSION_CHUNKED) {
+        decodeChunked(false);
+      } else if (version == TraceFormat.VERSION_COMPACT) {
+        decodeChunked(true);
+      } else if (version == TraceFormat.VERSION_MAPPED) {
+        decodeMapped();
+      } else if (version == TraceFormat.VERSION_COMPRESSED) {
+        decodeCompressed();
+      } else if (version == TraceFormat.VERSION_PLAIN) {
+        decodeRecords(in);
+      } else {
+        throw new IOException("Unsupported trace format version " + version);
+      }
+    } else if (first != -1) {
+      shortTids = true;
+      decodeRecord(in, first);
+      decodeRecords(in);
+    }
+  }
+
+  // Decompresses the trace into a temporary file and decodes that one.
+  private void decodeCompressed() throws IOException {
+    File raw = File.createTempFile("jtsan", ".trace");
+    raw.deleteOnExit();
+    OutputStream spool = new BufferedOutputStream(new FileOutputStream(raw));
+    long blocks;
+    try {
+      blocks = new CompressedTraceReader(in, Runtime.getRuntime().availableProcessors())
+          .decompress(spool);
+    } finally {
+      spool.close();
+    }
+    System.err.println("INFO: " + blocks + " compressed blocks decompressed.");
+    in.close();
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(raw)));
+    inFile = raw;
+    decodeStream();
+  }
+
+  void decodeRecord(DataInput in, int typeOrd) throws IOException {
+    if (typeOrd == TraceFormat.TRAILER) {
+      processTrailer(in);
+      return;
+    }
+    final EventType type = EventType.values()[typeOrd];
+    switch (type) {
+      case PC_DESCRIPTION:
+        processCodePosition(in);
+        break;
+      case PRINT_MESSAGE:
+        processComment(in);
+        break;
+      default:
+        processEvent(in, type);
+        break;
+    }
+  }
+
+  private void decodeRecords(DataInputStream in) throws IOException {
+    while (true) {
+      int typeOrd = in.read();
+      if (typeOrd == -1) {
+        return;
+      }
+      decodeRecord(in, typeOrd);
+    }
+  }
+
+  private void decodeMapped() throws IOException {
+    int index = in.readInt();
+    decodeSegment(in);
+    if (inFile == null || index != 0) {
+      System.err.println("WARNING: only one trace segment is decoded, "
+          + "pass the first segment file to decode all of them.");
+      return;
+    }
+    for (int i = 1; ; i++) {
+      File f = MappedEventWriter.segmentFile(inFile.getPath(), i);
+      if (!f.exists()) {
+        break;
+      }
+      DataInputStream segment = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+      try {
+        // Skip MAGIC, version and index.
+        segment.skipBytes(1 + 1 + 4);
+        decodeSegment(segment);
+      } finally {
+        segment.close();
+      }
+    }
+  }
+
+  // Decodes the committed part of a mapped segment, the rest is garbage.
+  private void decodeSegment(DataInputStream segment) throws IOException {
+    final long committed = segment.readLong();
+    decodeRecords(new DataInputStream(new FilterInputStream(segment) {
+      private long left = committed;
+
+      @Override
+      public int read() throws IOException {
+        if (left <= 0) {
+          return -1;
+        }
+        int b = super.read();
+        left--;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (left <= 0) {
+          return -1;
+        }
+        int n = super.read(b, off, (int) Math.min(len, left));
+        if (n > 0) {
+          left -= n;
+        }
+        return n;
+      }
+    }));
+  }
+
+  private void decodeChunked(boolean compact) throws IOException {
+    File file = inFile;
+    long offset = 2;
+    if (file == null) {
+      // Chunks of different threads are interleaved arbitrarily, spool the
+      // stream to have random access to them.
+      file = File.createTempFile("jtsan", ".chunks");
+      file.deleteOnExit();
+      OutputStream spool = new FileOutputStream(file);
+      try {
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+          spool.write(buf, 0, n);
+        }
+      } finally {
+        spool.close();
+      }
+      offset = 0;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      new ChunkedTraceReader(raf, this, compact).read(offset);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private void processCodePosition(DataInput in) throws IOException {
     int pc = in.readInt();
     String descr = in.readUTF();
-    out.println("#PC " + Integer.toHexString(pc) + " java " + descr);
+    printCodePosition(pc, descr);
   }
 
-  private void processComment() throws IOException {
+  private void processComment(DataInput in) throws IOException {
     String str = in.readUTF();
-    out.println("#> " + str);
+    printComment(str);
   }
-  
+
   @SuppressWarnings("fallthrough")
-  private void processEvent(EventType type) throws IOException {
+  private void processEvent(DataInput in, EventType type) throws IOException {
     int tid = 0;
     int pc = 0;
     long address = 0;
@@ -125,7 +314,8 @@ public class BinaryEventDecoder {
 
     switch (type) {
       case THR_START:
-        extra = in.readUnsignedShort();
+        extra = shortTids ? in.readUnsignedShort() : in.readInt();
+      case FREE:
       case READ:
       case READER_LOCK:
       case SIGNAL:
@@ -144,18 +334,78 @@ public class BinaryEventDecoder {
       case THR_FIRST_INSN:
         pc = in.readInt();
       case RTN_CALL:
-        tid = in.readUnsignedShort();
+        tid = shortTids ? in.readUnsignedShort() : in.readInt();
         break;
       default:
-        throw new UnsupportedOperationException("Unsupported EventType "
-            + type + " " + type.ordinal() + " on " + lineCount + " line");
+        throw unsupported(type);
     }
+    printEvent(type, tid, pc, address, extra);
+  }
+
+  private void processTrailer(DataInput in) throws IOException {
+    trailer = new long[in.readUnsignedByte()];
+    for (int i = 0; i < trailer.length; i++) {
+      trailer[i] = in.readLong();
+    }
+  }
+
+  private void verifyTrailer() {
+    if (trailer == null) {
+      System.err.println("WARNING: the trace has no trailer, it may be incomplete.");
+      return;
+    }
+    complete = true;
+    for (int i = 0; i < Math.max(trailer.length, decoded.length); i++) {
+      long written = i < trailer.length ? trailer[i] : 0;
+      long read = i < decoded.length ? decoded[i] : 0;
+      if (written != read) {
+        complete = false;
+        String name = i < decoded.length ? EventType.values()[i].toString() : "type " + i;
+        System.err.println("WARNING: " + read + " of " + written + " " + name
+            + " records decoded.");
+      }
+    }
+    if (complete) {
+      System.err.println("INFO: all records counted in the trailer are decoded.");
+    }
+  }
+
+  UnsupportedOperationException unsupported(EventType type) {
+    return new UnsupportedOperationException("Unsupported EventType "
+        + type + " " + type.ordinal() + " on " + lineCount + " line");
+  }
+
+  // Not counted, the trailer counts only positions within the trace.
+  private void printSymbols() {
+    if (symbols == null) {
+      return;
+    }
+    for (int pc : symbols.pcs()) {
+      out.println("#PC " + Integer.toHexString(pc) + " java " + symbols.describe(pc));
+      lineCount++;
+    }
+  }
+
+  void printCodePosition(long pc, String descr) {
+    out.println("#PC " + Integer.toHexString((int) pc) + " java " + descr);
+    decoded[EventType.PC_DESCRIPTION.ordinal()]++;
+    lineCount++;
+  }
+
+  void printComment(String str) {
+    out.println("#> " + str);
+    decoded[EventType.PRINT_MESSAGE.ordinal()]++;
+    lineCount++;
+  }
+
+  void printEvent(EventType type, long tid, long pc, long address, long extra) {
     if (type == EventType.READ || type == EventType.WRITE) {
       extra = 1;
     }
-
-    out.println(type + " " + Integer.toHexString(tid) + " " + Integer.toHexString(pc) + " "
-        + Long.toHexString(address) + " " + Integer.toHexString(extra));
+    out.println(type + " " + Integer.toHexString((int) tid) + " " + Integer.toHexString((int) pc)
+        + " " + Long.toHexString(address) + " " + Integer.toHexString((int) extra));
+    decoded[type.ordinal()]++;
+    lineCount++;
   }
 
 }
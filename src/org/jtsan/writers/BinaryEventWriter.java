@@ -31,18 +31,33 @@ public class BinaryEventWriter implements EventWriter {
 
   private DataOutputStream out;
 
+  // Records written per type, for the trailer.
+  private final long[] counts = new long[TraceFormat.TYPE_COUNT];
+
+  private boolean closed;
+
   public void setOutputStream(OutputStream outputStream) {
-    // TODO(vors): Implement final buffer flush - now we lose last events.
     out = new DataOutputStream(new BufferedOutputStream(outputStream));
+    try {
+      out.writeByte(TraceFormat.MAGIC);
+      out.writeByte(TraceFormat.VERSION_PLAIN);
+    } catch (IOException e) {
+      throw new RuntimeException("Exception occurred when writing trace header", e);
+    }
   }
 
   @SuppressWarnings("fallthrough")
   public synchronized void writeEvent(EventType type, long tid, long pc, long address, long extra) {
+    if (closed) {
+      return;
+    }
+    counts[type.ordinal()]++;
     try {
       out.writeByte(type.ordinal());
       switch (type) {
         case THR_START:
-          out.writeShort((int) extra);
+          out.writeInt((int) extra);
+        case FREE :
         case READ :
         case READER_LOCK :
         case SIGNAL :
@@ -61,7 +76,7 @@ public class BinaryEventWriter implements EventWriter {
         case THR_FIRST_INSN :
           out.writeInt((int) pc);
         case RTN_CALL :
-          out.writeShort((int) tid);
+          out.writeInt((int) tid);
         default:
           break;
       }
@@ -73,6 +88,10 @@ public class BinaryEventWriter implements EventWriter {
   }
 
   public synchronized void writeCodePosition(long pc, String descr) {
+    if (closed) {
+      return;
+    }
+    counts[EventType.PC_DESCRIPTION.ordinal()]++;
     try {
       out.writeByte(EventType.PC_DESCRIPTION.ordinal());
       out.writeInt((int) pc);
@@ -85,6 +104,10 @@ public class BinaryEventWriter implements EventWriter {
   }
 
   public synchronized void writeComment(String descr, long pc) {
+    if (closed) {
+      return;
+    }
+    counts[EventType.PRINT_MESSAGE.ordinal()]++;
     try {
       out.writeByte(EventType.PRINT_MESSAGE.ordinal());
       out.writeUTF(descr);
@@ -94,4 +117,37 @@ public class BinaryEventWriter implements EventWriter {
           descr + ", pc=" + pc, e);
     }
   }
+
+  public synchronized void flush() {
+    if (closed) {
+      return;
+    }
+    try {
+      out.flush();
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Exception occurred during flush", e);
+    }
+  }
+
+  /**
+   * Writes the trailer and closes the stream.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      out.writeByte(TraceFormat.TRAILER);
+      out.writeByte(counts.length);
+      for (long count : counts) {
+        out.writeLong(count);
+      }
+      out.close();
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Exception occurred during close", e);
+    }
+  }
 }
@@ -0,0 +1,46 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import java.io.IOException;
+
+/**
+ * Compresses independent blocks of a trace. A compressor instance may keep
+ * state between {@code compress} calls and is used by one thread at a time,
+ * {@code decompress} must be safe to call from many threads.
+ */
+public interface BlockCompressor {
+
+  /**
+   * Identifies the compressor in the trace header.
+   */
+  public int id();
+
+  public int maxCompressedLength(int length);
+
+  /**
+   * Compresses {@code length} bytes of {@code src} into {@code dst}, which
+   * holds at least {@code maxCompressedLength(length)} bytes. Returns the
+   * compressed length.
+   */
+  public int compress(byte[] src, int length, byte[] dst);
+
+  /**
+   * Restores exactly {@code rawLength} bytes into {@code dst}.
+   */
+  public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException;
+
+}
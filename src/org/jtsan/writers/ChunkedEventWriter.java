@@ -0,0 +1,372 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import org.jtsan.EventType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write tsan events in binary format without a global lock. Every thread
+ * appends records to its own chunk, full chunks are written to the
+ * {@code OutputStream} by a background flusher thread. Synchronization events
+ * are stamped with a global counter, so {@code BinaryEventDecoder} can merge
+ * the per-thread streams back into a valid global order. In the compact mode
+ * records use varints and deltas, see {@code TraceFormat} for the layout.
+ *
+ * Chunks come from a pool allocated up front. It grows only by one chunk
+ * per thread that writes, which holds one while it fills it, so a flusher
+ * that falls behind makes writers wait for chunks instead of growing the
+ * heap.
+ */
+public class ChunkedEventWriter implements EventWriter {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  // Number of chunks allocated up front and kept for reuse.
+  private static final int POOL_SIZE = 64;
+
+  // How long a writer waits for a free chunk before it checks for close.
+  private static final long CHUNK_WAIT_MS = 10;
+
+  // How often the flusher looks for chunks of finished threads.
+  private static final long SWEEP_INTERVAL_MS = 1000;
+
+  private static final EventChunk POISON = new EventChunk(0);
+
+  private static final EventChunk FLUSH = new EventChunk(0);
+
+  private final AtomicLong clock = new AtomicLong();
+
+  private final AtomicInteger nextWriterId = new AtomicInteger();
+
+  private final BlockingQueue<EventChunk> fullChunks = new LinkedBlockingQueue<EventChunk>();
+
+  private final BlockingQueue<EventChunk> freeChunks = new LinkedBlockingQueue<EventChunk>();
+
+  // Pool chunks allocated so far, and the streams that may each hold one.
+  private final AtomicInteger allocated = new AtomicInteger();
+
+  private final AtomicInteger streamCount = new AtomicInteger(1 /* symbols */);
+
+  private final ConcurrentLinkedQueue<ThreadStream> streams =
+      new ConcurrentLinkedQueue<ThreadStream>();
+
+  private final ThreadLocal<ThreadStream> localStream = new ThreadLocal<ThreadStream>() {
+    @Override
+    protected ThreadStream initialValue() {
+      streamCount.incrementAndGet();
+      ThreadStream s = new ThreadStream(nextWriterId.getAndIncrement(), clock.getAndIncrement());
+      streams.add(s);
+      return s;
+    }
+  };
+
+  // Code positions come from class transformation, they all go to one stream.
+  private final ThreadStream symbols = new ThreadStream(TraceFormat.SYMBOLS_WRITER_ID, 0);
+
+  private final boolean compact;
+
+  private DataOutputStream out;
+
+  private Thread flusher;
+
+  // Records per type in the chunks written so far, owned by the flusher.
+  private final long[] written = new long[TraceFormat.TYPE_COUNT];
+
+  private volatile boolean closed;
+
+  public ChunkedEventWriter() {
+    this(false);
+  }
+
+  public ChunkedEventWriter(boolean compact) {
+    this.compact = compact;
+  }
+
+  /**
+   * Records of one writer thread. The owning thread fills the current chunk
+   * while it holds the lock of the stream, close() takes the lock to hand
+   * the chunk over to the flusher.
+   */
+  private class ThreadStream {
+    private final int writerId;
+    private final long startStamp;
+    private final WeakReference<Thread> owner;
+    private int nextSeq;
+    private EventChunk chunk;
+
+    ThreadStream(int writerId, long startStamp) {
+      this.writerId = writerId;
+      this.startStamp = startStamp;
+      this.owner = new WeakReference<Thread>(Thread.currentThread());
+    }
+
+    // Returns null if the writer was closed while waiting for a chunk.
+    EventChunk ensure(int size) {
+      if (chunk == null || chunk.remaining() < size) {
+        submit();
+        chunk = takeChunk(size);
+        if (chunk == null) {
+          return null;
+        }
+        chunk.reset(writerId, nextSeq++, startStamp);
+      }
+      return chunk;
+    }
+
+    void submit() {
+      if (chunk != null && chunk.length > 0) {
+        fullChunks.add(chunk);
+        chunk = null;
+      }
+    }
+
+    boolean isOwnerDead() {
+      Thread t = owner.get();
+      return t == null || !t.isAlive();
+    }
+  }
+
+  private class Flusher extends Thread {
+    Flusher() {
+      super("jtsan-chunk-flusher");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      long lastSweep = System.currentTimeMillis();
+      try {
+        while (true) {
+          EventChunk c = fullChunks.poll(SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+          if (c == POISON) {
+            break;
+          }
+          if (c == FLUSH) {
+            out.flush();
+          } else if (c != null) {
+            writeChunk(c);
+          }
+          long now = System.currentTimeMillis();
+          if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+            sweepFinishedThreads();
+            lastSweep = now;
+          }
+        }
+        writeTrailer();
+        // Nothing is written after the flusher stops, let stream stages finish.
+        out.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException e) {
+        throw new RuntimeException("Exception occurred when writing event chunk", e);
+      }
+    }
+  }
+
+  public void setOutputStream(OutputStream outputStream) {
+    out = new DataOutputStream(new BufferedOutputStream(outputStream, CHUNK_SIZE));
+    try {
+      out.writeByte(TraceFormat.MAGIC);
+      out.writeByte(compact ? TraceFormat.VERSION_COMPACT : TraceFormat.VERSION_CHUNKED);
+    } catch (IOException e) {
+      throw new RuntimeException("Exception occurred when writing trace header", e);
+    }
+    for (int i = 0; i < POOL_SIZE; i++) {
+      freeChunks.add(new EventChunk(CHUNK_SIZE));
+    }
+    allocated.addAndGet(POOL_SIZE);
+    flusher = new Flusher();
+    flusher.start();
+  }
+
+  public void writeEvent(EventType type, long tid, long pc, long address, long extra) {
+    if (closed) {
+      return;
+    }
+    ThreadStream s = localStream.get();
+    synchronized (s) {
+      if (closed) {
+        return;
+      }
+      long stamp = TraceFormat.isStamped(type) ? clock.getAndIncrement() : 0;
+      EventChunk chunk = s.ensure(EventChunk.MAX_EVENT_SIZE);
+      if (chunk == null) {
+        return;
+      }
+      if (compact) {
+        chunk.putCompactEvent(type, stamp, tid, pc, address, extra);
+      } else {
+        chunk.putEvent(type, stamp, tid, pc, address, extra);
+      }
+    }
+  }
+
+  public void writeCodePosition(long pc, String descr) {
+    if (closed) {
+      return;
+    }
+    byte[] utf = EventChunk.encodeUTF(descr);
+    synchronized (symbols) {
+      EventChunk chunk = closed ? null : symbols.ensure(1 + 10 + utf.length);
+      if (chunk == null) {
+        return;
+      }
+      if (compact) {
+        chunk.putCompactCodePosition(pc, utf);
+      } else {
+        chunk.putCodePosition(pc, utf);
+      }
+    }
+  }
+
+  public void writeComment(String str, long pc) {
+    if (closed) {
+      return;
+    }
+    byte[] utf = EventChunk.encodeUTF(str);
+    ThreadStream s = localStream.get();
+    synchronized (s) {
+      EventChunk chunk = closed ? null : s.ensure(1 + utf.length);
+      if (chunk != null) {
+        chunk.putComment(utf);
+      }
+    }
+  }
+
+  /**
+   * Writes out the chunks handed over to the flusher so far. Chunks that
+   * threads are still filling stay with them.
+   */
+  public void flush() {
+    if (!closed) {
+      fullChunks.add(FLUSH);
+    }
+  }
+
+  /**
+   * Writes out all pending chunks and the trailer, then stops the flusher.
+   * Events that other threads write after the close are dropped. A thread
+   * in the middle of a record finishes it before its chunk is taken.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // Not under the lock of streams: the flusher may need it to free the
+    // chunk a writer holding its stream lock waits for.
+    for (ThreadStream s : streams) {
+      synchronized (s) {
+        s.submit();
+      }
+    }
+    synchronized (symbols) {
+      symbols.submit();
+    }
+    fullChunks.add(POISON);
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Waits for a free chunk once every stream may hold one and POOL_SIZE
+  // more are allocated. Returns null if the writer is closed meanwhile.
+  private EventChunk takeChunk(int size) {
+    if (size > CHUNK_SIZE) {
+      return new EventChunk(size);
+    }
+    while (true) {
+      EventChunk c = freeChunks.poll();
+      if (c != null) {
+        return c;
+      }
+      int n = allocated.get();
+      if (n < POOL_SIZE + streamCount.get()) {
+        if (allocated.compareAndSet(n, n + 1)) {
+          return new EventChunk(CHUNK_SIZE);
+        }
+        continue;
+      }
+      try {
+        c = freeChunks.poll(CHUNK_WAIT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      if (c != null) {
+        return c;
+      }
+      if (closed) {
+        return null;
+      }
+    }
+  }
+
+  private void writeChunk(EventChunk c) throws IOException {
+    c.writeTo(out);
+    for (int i = 0; i < written.length; i++) {
+      written[i] += c.counts[i];
+    }
+    if (c.data.length == CHUNK_SIZE) {
+      freeChunks.add(c);
+    }
+  }
+
+  private void writeTrailer() throws IOException {
+    EventChunk trailer = new EventChunk(1 + 1 + 8 * written.length);
+    trailer.reset(TraceFormat.TRAILER_WRITER_ID, 0, 0);
+    trailer.putTrailer(written);
+    trailer.writeTo(out);
+  }
+
+  // Threads that are gone never fill their last chunk, write it out and drop the stream.
+  private void sweepFinishedThreads() throws IOException {
+    synchronized (streams) {
+      for (Iterator<ThreadStream> it = streams.iterator(); it.hasNext();) {
+        ThreadStream s = it.next();
+        if (s.isOwnerDead()) {
+          it.remove();
+          streamCount.decrementAndGet();
+          // A dead owner holds no lock, this only waits for close().
+          synchronized (s) {
+            EventChunk c = s.chunk;
+            s.chunk = null;
+            if (c != null && c.length > 0) {
+              writeChunk(c);
+            } else if (c != null) {
+              freeChunks.add(c);
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import org.jtsan.EventType;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the per-thread streams of a chunked trace into one stream.
+ *
+ * Each writer stream is cut into segments, a segment is a stamped record
+ * followed by the unstamped records of the same thread up to the next stamped
+ * one. Segments are emitted in the order of their stamps. Unstamped records
+ * only move relative to records of other threads that are not ordered with
+ * them by any synchronization, so the result is a valid execution order.
+ *
+ * Compact records are decoded whole, since their stamps are deltas. A stamped
+ * compact record is kept as the head of the next segment.
+ */
+class ChunkedTraceReader {
+
+  private final RandomAccessFile file;
+  private final BinaryEventDecoder decoder;
+  private final boolean compact;
+  private final Map<Integer, List<ChunkRef>> chunks = new HashMap<Integer, List<ChunkRef>>();
+
+  private static class ChunkRef {
+    private final long offset;
+    private final int length;
+    private final int seq;
+    private final long startStamp;
+
+    ChunkRef(long offset, int length, int seq, long startStamp) {
+      this.offset = offset;
+      this.length = length;
+      this.seq = seq;
+      this.startStamp = startStamp;
+    }
+  }
+
+  private static final Comparator<ChunkRef> BY_SEQ = new Comparator<ChunkRef>() {
+    public int compare(ChunkRef a, ChunkRef b) {
+      return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+    }
+  };
+
+  private static final Comparator<WriterStream> BY_HEAD_STAMP = new Comparator<WriterStream>() {
+    public int compare(WriterStream a, WriterStream b) {
+      return a.headStamp < b.headStamp ? -1 : (a.headStamp == b.headStamp ? 0 : 1);
+    }
+  };
+
+  /**
+   * Reads payloads of one writer's chunks in sequence.
+   */
+  private class ChunkInputStream extends InputStream {
+    private final List<ChunkRef> refs;
+    // Index of the next chunk to load, the current one is next - 1.
+    private int next;
+    private byte[] buf = new byte[0];
+    private int pos;
+
+    ChunkInputStream(List<ChunkRef> refs) {
+      this.refs = refs;
+    }
+
+    private boolean fill() throws IOException {
+      while (pos == buf.length) {
+        if (next == refs.size()) {
+          return false;
+        }
+        ChunkRef ref = refs.get(next++);
+        buf = new byte[ref.length];
+        file.seek(ref.offset);
+        file.readFully(buf);
+        pos = 0;
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? buf[pos++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int n = Math.min(len, buf.length - pos);
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+  }
+
+  private class WriterStream {
+    private final ChunkInputStream chunkIn;
+    private final DataInputStream in;
+    private long headStamp;
+    // Type of the stamped record heading the current segment, -1 at the start.
+    private int headType = -1;
+
+    // Fields of the compact head record, and the delta bases of the chunk
+    // being read.
+    private long headTid;
+    private long headPc;
+    private long headAddress;
+    private long headExtra;
+    private int chunk = -1;
+    private long lastStamp;
+    private long lastPc;
+    private long lastAddress;
+    private long chunkTid;
+
+    WriterStream(List<ChunkRef> refs) {
+      chunkIn = new ChunkInputStream(refs);
+      in = new DataInputStream(chunkIn);
+      headStamp = refs.get(0).startStamp;
+    }
+
+    /**
+     * Emits the current segment. Returns false when the stream is exhausted.
+     */
+    boolean emitSegment() throws IOException {
+      if (compact) {
+        return emitCompactSegment();
+      }
+      if (headType != -1) {
+        decoder.decodeRecord(in, headType);
+      }
+      while (true) {
+        int typeOrd = in.read();
+        if (typeOrd == -1) {
+          return false;
+        }
+        if (TraceFormat.isStamped(EventType.values()[typeOrd])) {
+          headType = typeOrd;
+          headStamp = in.readLong();
+          return true;
+        }
+        decoder.decodeRecord(in, typeOrd);
+      }
+    }
+
+    private boolean emitCompactSegment() throws IOException {
+      if (headType != -1) {
+        decoder.printEvent(EventType.values()[headType], headTid, headPc, headAddress, headExtra);
+      }
+      while (true) {
+        int header = in.read();
+        if (header == -1) {
+          return false;
+        }
+        // Records never span chunks, so the delta bases are reset right after
+        // the first byte of a chunk is read.
+        if (chunk != chunkIn.next - 1) {
+          chunk = chunkIn.next - 1;
+          lastStamp = chunkIn.refs.get(chunk).startStamp;
+          lastPc = 0;
+          lastAddress = 0;
+          chunkTid = -1;
+        }
+        if (readCompactRecord(header)) {
+          headType = header & ~TraceFormat.COMPACT_EXPLICIT_TID;
+          headStamp = lastStamp;
+          return true;
+        }
+      }
+    }
+
+    /**
+     * Reads a compact record, prints it unless it is stamped. Returns true
+     * for a stamped record, its fields are left in the head fields.
+     */
+    @SuppressWarnings("fallthrough")
+    private boolean readCompactRecord(int header) throws IOException {
+      EventType type = EventType.values()[header & ~TraceFormat.COMPACT_EXPLICIT_TID];
+      if (type == EventType.PC_DESCRIPTION) {
+        long pc = readVarLong();
+        decoder.printCodePosition(pc, in.readUTF());
+        return false;
+      }
+      if (type == EventType.PRINT_MESSAGE) {
+        decoder.printComment(in.readUTF());
+        return false;
+      }
+      long tid = chunkTid;
+      if ((header & TraceFormat.COMPACT_EXPLICIT_TID) != 0) {
+        tid = readVarLong();
+        if (chunkTid == -1) {
+          chunkTid = tid;
+        }
+      }
+      boolean stamped = TraceFormat.isStamped(type);
+      if (stamped) {
+        lastStamp += readVarLong();
+      }
+      long extra = 0;
+      long address = 0;
+      long pc = 0;
+      switch (type) {
+        case THR_START:
+          extra = readVarLong();
+        case FREE:
+        case READ:
+        case READER_LOCK:
+        case SIGNAL:
+        case THR_JOIN_AFTER:
+        case UNLOCK:
+        case WAIT:
+        case WRITE:
+        case WRITER_LOCK:
+          lastAddress += unZigZag(readVarLong());
+          address = lastAddress;
+        case EXPECT_RACE_BEGIN:
+        case EXPECT_RACE_END:
+        case RTN_EXIT:
+        case SBLOCK_ENTER:
+        case STACK_TRACE:
+        case THR_END:
+        case THR_FIRST_INSN:
+          lastPc += unZigZag(readVarLong());
+          pc = lastPc;
+        case RTN_CALL:
+          break;
+        default:
+          throw decoder.unsupported(type);
+      }
+      if (!stamped) {
+        decoder.printEvent(type, tid, pc, address, extra);
+        return false;
+      }
+      headTid = tid;
+      headPc = pc;
+      headAddress = address;
+      headExtra = extra;
+      return true;
+    }
+
+    private long readVarLong() throws IOException {
+      long v = 0;
+      for (int shift = 0; ; shift += 7) {
+        int b = in.readUnsignedByte();
+        v |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return v;
+        }
+      }
+    }
+  }
+
+  ChunkedTraceReader(RandomAccessFile file, BinaryEventDecoder decoder, boolean compact) {
+    this.file = file;
+    this.decoder = decoder;
+    this.compact = compact;
+  }
+
+  private static long unZigZag(long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  void read(long offset) throws IOException {
+    index(offset);
+
+    // Code positions do not depend on the order, print them first.
+    List<ChunkRef> symbols = chunks.remove(TraceFormat.SYMBOLS_WRITER_ID);
+    if (symbols != null) {
+      new WriterStream(symbols).emitSegment();
+    }
+    List<ChunkRef> trailer = chunks.remove(TraceFormat.TRAILER_WRITER_ID);
+
+    PriorityQueue<WriterStream> queue =
+        new PriorityQueue<WriterStream>(Math.max(1, chunks.size()), BY_HEAD_STAMP);
+    for (List<ChunkRef> refs : chunks.values()) {
+      queue.add(new WriterStream(refs));
+    }
+    while (!queue.isEmpty()) {
+      WriterStream s = queue.poll();
+      if (s.emitSegment()) {
+        queue.add(s);
+      }
+    }
+
+    // The trailer is a plain record in any layout.
+    if (trailer != null) {
+      DataInputStream in = new DataInputStream(new ChunkInputStream(trailer));
+      for (int typeOrd = in.read(); typeOrd != -1; typeOrd = in.read()) {
+        decoder.decodeRecord(in, typeOrd);
+      }
+    }
+  }
+
+  private void index(long offset) throws IOException {
+    long fileLength = file.length();
+    file.seek(offset);
+    try {
+      while (file.getFilePointer() < fileLength) {
+        int writerId = file.readInt();
+        int seq = file.readInt();
+        long startStamp = file.readLong();
+        int length = file.readInt();
+        long payload = file.getFilePointer();
+        if (payload + length > fileLength) {
+          System.err.println("WARNING: truncated chunk of writer " + writerId + " is skipped.");
+          break;
+        }
+        List<ChunkRef> refs = chunks.get(writerId);
+        if (refs == null) {
+          refs = new ArrayList<ChunkRef>();
+          chunks.put(writerId, refs);
+        }
+        refs.add(new ChunkRef(payload, length, seq, startStamp));
+        file.seek(payload + length);
+      }
+    } catch (EOFException e) {
+      System.err.println("WARNING: truncated chunk header at the end of the trace.");
+    }
+    for (List<ChunkRef> refs : chunks.values()) {
+      Collections.sort(refs, BY_SEQ);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Restores a trace written through {@code CompressingOutputStream}. Blocks
+ * are read in order and decompressed by a pool of threads, a bounded window
+ * of them is in flight at a time.
+ */
+class CompressedTraceReader {
+
+  private final DataInputStream in;
+  private final int threads;
+
+  CompressedTraceReader(DataInputStream in, int threads) {
+    this.in = in;
+    this.threads = threads;
+  }
+
+  /**
+   * Reads the compressor id and the blocks that follow it, writes the raw
+   * trace to {@code out}. Returns the number of blocks.
+   */
+  long decompress(OutputStream out) throws IOException {
+    final BlockCompressor compressor = CompressingOutputStream.newCompressor(in.readUnsignedByte());
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    LinkedList<Future<byte[]>> window = new LinkedList<Future<byte[]>>();
+    long blocks = 0;
+    try {
+      while (true) {
+        int first = in.read();
+        if (first == -1) {
+          break;
+        }
+        final int rawLength;
+        final byte[] stored;
+        try {
+          rawLength = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+          int storedLength = in.readInt();
+          if (rawLength <= 0 || storedLength <= 0 || storedLength > rawLength) {
+            throw new IOException("Corrupted block header " + rawLength + " " + storedLength
+                + " at block " + blocks);
+          }
+          stored = new byte[storedLength];
+          in.readFully(stored);
+        } catch (EOFException e) {
+          System.err.println("WARNING: truncated block at the end of the trace is skipped.");
+          break;
+        }
+        blocks++;
+        window.add(pool.submit(new Callable<byte[]>() {
+          public byte[] call() throws IOException {
+            if (stored.length == rawLength) {
+              return stored;
+            }
+            byte[] raw = new byte[rawLength];
+            compressor.decompress(stored, stored.length, raw, rawLength);
+            return raw;
+          }
+        }));
+        if (window.size() >= threads * 2) {
+          out.write(get(window.removeFirst()));
+        }
+      }
+      while (!window.isEmpty()) {
+        out.write(get(window.removeFirst()));
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return blocks;
+  }
+
+  private static byte[] get(Future<byte[]> f) throws IOException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decompressing");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
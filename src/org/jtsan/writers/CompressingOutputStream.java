@@ -0,0 +1,134 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses a trace in independent blocks, so that the decoder can
+ * decompress them in parallel and a truncated trace loses only its last
+ * block. Compression runs in the thread that writes to the stream: the
+ * flusher of {@code ChunkedEventWriter}, the consumer of
+ * {@code AsyncEventWriter}, or the event thread for the other writers.
+ *
+ * The stream starts with [MAGIC][VERSION_COMPRESSED][compressor id], then go
+ * blocks of [raw length: int][stored length: int][data]. A block with equal
+ * lengths is stored uncompressed.
+ */
+public class CompressingOutputStream extends OutputStream {
+
+  public static final int BLOCK_SIZE = 256 * 1024;
+
+  // Writers that flush every record would otherwise produce tiny blocks,
+  // smaller tails wait for more data or for close().
+  private static final int MIN_FLUSH_SIZE = BLOCK_SIZE / 16;
+
+  private final DataOutputStream out;
+  private final BlockCompressor compressor;
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private final byte[] compressed;
+  private int length;
+  private boolean headerWritten;
+
+  public CompressingOutputStream(OutputStream out, BlockCompressor compressor) {
+    this.out = new DataOutputStream(out);
+    this.compressor = compressor;
+    compressed = new byte[compressor.maxCompressedLength(BLOCK_SIZE)];
+  }
+
+  /**
+   * Returns the compressor called {@code name} in agent options.
+   */
+  public static BlockCompressor newCompressor(String name) {
+    if (name.equals("lz4")) {
+      return new Lz4BlockCompressor();
+    } else if (name.equals("deflate")) {
+      return new DeflateBlockCompressor();
+    }
+    throw new IllegalArgumentException("Unknown compressor: " + name);
+  }
+
+  static BlockCompressor newCompressor(int id) throws IOException {
+    if (id == Lz4BlockCompressor.ID) {
+      return new Lz4BlockCompressor();
+    } else if (id == DeflateBlockCompressor.ID) {
+      return new DeflateBlockCompressor();
+    }
+    throw new IOException("Unknown compressor id: " + id);
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    if (length == BLOCK_SIZE) {
+      writeBlock();
+    }
+    block[length++] = (byte) b;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (length == BLOCK_SIZE) {
+        writeBlock();
+      }
+      int n = Math.min(len, BLOCK_SIZE - length);
+      System.arraycopy(b, off, block, length, n);
+      length += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (length >= MIN_FLUSH_SIZE) {
+      writeBlock();
+    }
+    out.flush();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (length > 0 || !headerWritten) {
+      writeBlock();
+    }
+    out.close();
+  }
+
+  private void writeBlock() throws IOException {
+    if (!headerWritten) {
+      out.writeByte(TraceFormat.MAGIC);
+      out.writeByte(TraceFormat.VERSION_COMPRESSED);
+      out.writeByte(compressor.id());
+      headerWritten = true;
+    }
+    if (length == 0) {
+      return;
+    }
+    int n = compressor.compress(block, length, compressed);
+    out.writeInt(length);
+    if (n < length) {
+      out.writeInt(n);
+      out.write(compressed, 0, n);
+    } else {
+      out.writeInt(length);
+      out.write(block, 0, length);
+    }
+    length = 0;
+  }
+}
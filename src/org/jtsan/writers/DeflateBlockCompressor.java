@@ -0,0 +1,77 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block compression with {@code java.util.zip}, slower than
+ * {@code Lz4BlockCompressor} but with a better ratio.
+ */
+public class DeflateBlockCompressor implements BlockCompressor {
+
+  public static final int ID = 2;
+
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true /* nowrap */);
+
+  public int id() {
+    return ID;
+  }
+
+  public int maxCompressedLength(int length) {
+    // Stored deflate blocks take 5 bytes per 16K, plus the final block.
+    return length + (length >>> 12) + 64;
+  }
+
+  public int compress(byte[] src, int length, byte[] dst) {
+    deflater.reset();
+    deflater.setInput(src, 0, length);
+    deflater.finish();
+    int n = 0;
+    while (!deflater.finished()) {
+      n += deflater.deflate(dst, n, dst.length - n);
+    }
+    return n;
+  }
+
+  public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+    Inflater inflater = new Inflater(true /* nowrap */);
+    try {
+      // The nowrap mode needs an extra dummy byte at the end of the input.
+      byte[] input = new byte[length + 1];
+      System.arraycopy(src, 0, input, 0, length);
+      inflater.setInput(input);
+      int n = 0;
+      while (n < rawLength && !inflater.finished()) {
+        int k = inflater.inflate(dst, n, rawLength - n);
+        if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += k;
+      }
+      if (n != rawLength) {
+        throw new IOException("Corrupted deflate block: " + n + " of " + rawLength + " bytes");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted deflate block: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,258 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import org.jtsan.EventType;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pre-allocated buffer of records owned by a single writer thread. Records
+ * are encoded either the same way {@code BinaryEventWriter} encodes them, or
+ * in the compact form described in {@code TraceFormat}.
+ */
+class EventChunk {
+
+  // The longest event record: type, stamp, extra, address, pc, tid. A compact
+  // record may take up to 10 bytes for each varint field.
+  static final int MAX_EVENT_SIZE = 1 + 10 + 10 + 10 + 10 + 10;
+
+  final byte[] data;
+
+  int length;
+
+  int writerId;
+
+  int seq;
+
+  long startStamp;
+
+  // Records per type in this chunk.
+  final int[] counts = new int[TraceFormat.TYPE_COUNT];
+
+  // Delta bases of the compact encoding, reset for every chunk so that chunks
+  // can be decoded independently.
+  private long lastStamp;
+  private long lastPc;
+  private long lastAddress;
+  private long chunkTid;
+
+  EventChunk(int capacity) {
+    data = new byte[capacity];
+  }
+
+  int remaining() {
+    return data.length - length;
+  }
+
+  void reset(int writerId, int seq, long startStamp) {
+    this.writerId = writerId;
+    this.seq = seq;
+    this.startStamp = startStamp;
+    length = 0;
+    Arrays.fill(counts, 0);
+    lastStamp = startStamp;
+    lastPc = 0;
+    lastAddress = 0;
+    chunkTid = -1;
+  }
+
+  @SuppressWarnings("fallthrough")
+  void putEvent(EventType type, long stamp, long tid, long pc, long address, long extra) {
+    counts[type.ordinal()]++;
+    putByte(type.ordinal());
+    if (TraceFormat.isStamped(type)) {
+      putLong(stamp);
+    }
+    switch (type) {
+      case THR_START:
+        putInt((int) extra);
+      case FREE :
+      case READ :
+      case READER_LOCK :
+      case SIGNAL :
+      case THR_JOIN_AFTER :
+      case UNLOCK :
+      case WAIT :
+      case WRITE :
+      case WRITER_LOCK :
+        putLong(address);
+      case EXPECT_RACE_BEGIN :
+      case EXPECT_RACE_END :
+      case RTN_EXIT :
+      case SBLOCK_ENTER :
+      case STACK_TRACE :
+      case THR_END :
+      case THR_FIRST_INSN :
+        putInt((int) pc);
+      case RTN_CALL :
+        putInt((int) tid);
+      default:
+        break;
+    }
+  }
+
+  @SuppressWarnings("fallthrough")
+  void putCompactEvent(EventType type, long stamp, long tid, long pc, long address, long extra) {
+    counts[type.ordinal()]++;
+    boolean explicitTid = tid != chunkTid;
+    putByte(type.ordinal() | (explicitTid ? TraceFormat.COMPACT_EXPLICIT_TID : 0));
+    if (explicitTid) {
+      putVarLong(tid);
+      if (chunkTid == -1) {
+        chunkTid = tid;
+      }
+    }
+    if (TraceFormat.isStamped(type)) {
+      putVarLong(stamp - lastStamp);
+      lastStamp = stamp;
+    }
+    switch (type) {
+      case THR_START:
+        putVarLong(extra);
+      case FREE :
+      case READ :
+      case READER_LOCK :
+      case SIGNAL :
+      case THR_JOIN_AFTER :
+      case UNLOCK :
+      case WAIT :
+      case WRITE :
+      case WRITER_LOCK :
+        putVarLong(zigZag(address - lastAddress));
+        lastAddress = address;
+      case EXPECT_RACE_BEGIN :
+      case EXPECT_RACE_END :
+      case RTN_EXIT :
+      case SBLOCK_ENTER :
+      case STACK_TRACE :
+      case THR_END :
+      case THR_FIRST_INSN :
+        putVarLong(zigZag(pc - lastPc));
+        lastPc = pc;
+      default:
+        break;
+    }
+  }
+
+  void putCompactCodePosition(long pc, byte[] utf) {
+    counts[EventType.PC_DESCRIPTION.ordinal()]++;
+    putByte(EventType.PC_DESCRIPTION.ordinal());
+    putVarLong(pc);
+    putBytes(utf);
+  }
+
+  void putCodePosition(long pc, byte[] utf) {
+    counts[EventType.PC_DESCRIPTION.ordinal()]++;
+    putByte(EventType.PC_DESCRIPTION.ordinal());
+    putInt((int) pc);
+    putBytes(utf);
+  }
+
+  void putComment(byte[] utf) {
+    counts[EventType.PRINT_MESSAGE.ordinal()]++;
+    putByte(EventType.PRINT_MESSAGE.ordinal());
+    putBytes(utf);
+  }
+
+  void putTrailer(long[] typeCounts) {
+    putByte(TraceFormat.TRAILER);
+    putByte(typeCounts.length);
+    for (long count : typeCounts) {
+      putLong(count);
+    }
+  }
+
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(writerId);
+    out.writeInt(seq);
+    out.writeLong(startStamp);
+    out.writeInt(length);
+    out.write(data, 0, length);
+  }
+
+  /**
+   * Encodes a string the way {@code DataOutput.writeUTF} does, so that the
+   * decoder can read it back with {@code DataInput.readUTF}.
+   */
+  static byte[] encodeUTF(String str) {
+    int strlen = Math.min(str.length(), 65535 / 3);
+    int utflen = 0;
+    for (int i = 0; i < strlen; i++) {
+      char c = str.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        utflen++;
+      } else if (c > 0x07FF) {
+        utflen += 3;
+      } else {
+        utflen += 2;
+      }
+    }
+    byte[] res = new byte[utflen + 2];
+    int count = 0;
+    res[count++] = (byte) (utflen >>> 8);
+    res[count++] = (byte) utflen;
+    for (int i = 0; i < strlen; i++) {
+      char c = str.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        res[count++] = (byte) c;
+      } else if (c > 0x07FF) {
+        res[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+        res[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        res[count++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        res[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+        res[count++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return res;
+  }
+
+  static long zigZag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private void putVarLong(long v) {
+    while ((v & ~0x7FL) != 0) {
+      data[length++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    data[length++] = (byte) v;
+  }
+
+  private void putByte(int v) {
+    data[length++] = (byte) v;
+  }
+
+  private void putInt(int v) {
+    data[length++] = (byte) (v >>> 24);
+    data[length++] = (byte) (v >>> 16);
+    data[length++] = (byte) (v >>> 8);
+    data[length++] = (byte) v;
+  }
+
+  private void putLong(long v) {
+    putInt((int) (v >>> 32));
+    putInt((int) v);
+  }
+
+  private void putBytes(byte[] bytes) {
+    System.arraycopy(bytes, 0, data, length, bytes.length);
+    length += bytes.length;
+  }
+}
@@ -34,4 +34,16 @@ public interface EventWriter {
 
   public void writeComment(String str, long pc);
 
+  /**
+   * Pushes buffered events to the output. Called periodically, so writers
+   * do not need to flush on every event.
+   */
+  public void flush();
+
+  /**
+   * Writes out everything buffered and finishes the trace. Events written
+   * after the close are ignored.
+   */
+  public void close();
+
 }
@@ -0,0 +1,166 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A fast greedy compressor producing the LZ4 block format: a sequence of
+ * [token][literal length bytes][literals][offset: 2 bytes LE][match length
+ * bytes], where the token holds 4-bit literal and match lengths. The last
+ * sequence holds literals only.
+ */
+public class Lz4BlockCompressor implements BlockCompressor {
+
+  public static final int ID = 1;
+
+  private static final int MIN_MATCH = 4;
+
+  // The format requires the last 5 bytes to be literals and the last match
+  // to start at least 12 bytes before the end.
+  private static final int LAST_LITERALS = 5;
+  private static final int MF_LIMIT = 12;
+
+  private static final int MAX_OFFSET = 65535;
+
+  private static final int HASH_LOG = 14;
+
+  // Skip faster through data that does not compress.
+  private static final int SKIP_TRIGGER = 6;
+
+  private final int[] table = new int[1 << HASH_LOG];
+
+  public int id() {
+    return ID;
+  }
+
+  public int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  public int compress(byte[] src, int length, byte[] dst) {
+    Arrays.fill(table, -1);
+    int anchor = 0;
+    int ip = 0;
+    int op = 0;
+    int limit = length - MF_LIMIT;
+    int matchLimit = length - LAST_LITERALS;
+    while (ip < limit) {
+      int seq = readInt(src, ip);
+      int h = hash(seq);
+      int ref = table[h];
+      table[h] = ip;
+      if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+        ip += 1 + ((ip - anchor) >>> SKIP_TRIGGER);
+        continue;
+      }
+      while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+        ip--;
+        ref--;
+      }
+      int matchLength = MIN_MATCH;
+      while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+        matchLength++;
+      }
+      op = writeSequence(src, anchor, ip - anchor, dst, op, matchLength - MIN_MATCH);
+      dst[op++] = (byte) (ip - ref);
+      dst[op++] = (byte) ((ip - ref) >>> 8);
+      op = writeLength(matchLength - MIN_MATCH, dst, op);
+      ip += matchLength;
+      anchor = ip;
+    }
+    return writeSequence(src, anchor, length - anchor, dst, op, 0);
+  }
+
+  public void decompress(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+    int ip = 0;
+    int op = 0;
+    try {
+      while (ip < length) {
+        int token = src[ip++] & 0xFF;
+        int literals = token >>> 4;
+        if (literals == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            literals += b;
+          } while (b == 255);
+        }
+        System.arraycopy(src, ip, dst, op, literals);
+        ip += literals;
+        op += literals;
+        if (ip >= length) {
+          break;
+        }
+        int offset = (src[ip++] & 0xFF) | ((src[ip++] & 0xFF) << 8);
+        int matchLength = token & 0xF;
+        if (matchLength == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xFF;
+            matchLength += b;
+          } while (b == 255);
+        }
+        matchLength += MIN_MATCH;
+        int ref = op - offset;
+        if (offset == 0 || ref < 0 || op + matchLength > rawLength) {
+          throw new IOException("Corrupted LZ4 block: bad match at " + ip);
+        }
+        // Byte by byte, the match may overlap the bytes it produces.
+        for (int end = op + matchLength; op < end;) {
+          dst[op++] = dst[ref++];
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupted LZ4 block: out of bounds at " + ip);
+    }
+    if (op != rawLength) {
+      throw new IOException("Corrupted LZ4 block: " + op + " of " + rawLength + " bytes");
+    }
+  }
+
+  private static int writeSequence(byte[] src, int start, int literals, byte[] dst, int op,
+      int matchLength) {
+    dst[op++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchLength, 15));
+    op = writeLength(literals, dst, op);
+    System.arraycopy(src, start, dst, op, literals);
+    return op + literals;
+  }
+
+  // Writes the part of a length that does not fit the token.
+  private static int writeLength(int length, byte[] dst, int op) {
+    if (length < 15) {
+      return op;
+    }
+    length -= 15;
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length -= 255;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16)
+        | ((b[i + 3] & 0xFF) << 24);
+  }
+
+  private static int hash(int seq) {
+    return (seq * -1640531535) >>> (32 - HASH_LOG);
+  }
+}
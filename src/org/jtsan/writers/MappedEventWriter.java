@@ -0,0 +1,223 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import org.jtsan.EventType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write tsan events in binary format directly into memory-mapped segment
+ * files. The first segment is the events file itself, next ones get suffixes
+ * ".1", ".2", etc.
+ *
+ * Each segment starts with a header:
+ *   [MAGIC][VERSION_MAPPED][segment index: int][committed length: long]
+ * followed by plain records. The committed length is updated after every
+ * record, so a crashed process leaves a trace readable up to the last
+ * complete event: the mapped pages belong to the page cache and survive the
+ * process. Segments are truncated to their records when they are done, the
+ * one being written keeps the full segment size until then.
+ */
+public class MappedEventWriter implements EventWriter {
+
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+  static final int HEADER_SIZE = 1 + 1 + 4 + 8;
+
+  private static final int COMMITTED_OFFSET = 1 + 1 + 4;
+
+  private final String baseName;
+
+  private final long segmentSize;
+
+  private MappedByteBuffer buf;
+
+  private int segmentIndex = -1;
+
+  // Records written per type, for the trailer.
+  private final long[] counts = new long[TraceFormat.TYPE_COUNT];
+
+  private boolean closed;
+
+  public MappedEventWriter(String baseName, long segmentSize) {
+    if (segmentSize <= HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Unsupported trace segment size: " + segmentSize);
+    }
+    this.baseName = baseName;
+    this.segmentSize = segmentSize;
+  }
+
+  public static File segmentFile(String baseName, int index) {
+    return new File(index == 0 ? baseName : baseName + "." + index);
+  }
+
+  /**
+   * The stream is not used, segment files are mapped by name.
+   */
+  public synchronized void setOutputStream(OutputStream outputStream) {
+    // Segments left by a previous longer run would be taken for a continuation.
+    for (int i = 1; segmentFile(baseName, i).delete(); i++) {
+    }
+    nextSegment();
+  }
+
+  @SuppressWarnings("fallthrough")
+  public synchronized void writeEvent(EventType type, long tid, long pc, long address, long extra) {
+    if (closed) {
+      return;
+    }
+    counts[type.ordinal()]++;
+    ensure(EventChunk.MAX_EVENT_SIZE);
+    buf.put((byte) type.ordinal());
+    switch (type) {
+      case THR_START:
+        buf.putInt((int) extra);
+      case FREE :
+      case READ :
+      case READER_LOCK :
+      case SIGNAL :
+      case THR_JOIN_AFTER :
+      case UNLOCK :
+      case WAIT :
+      case WRITE :
+      case WRITER_LOCK :
+        buf.putLong(address);
+      case EXPECT_RACE_BEGIN :
+      case EXPECT_RACE_END :
+      case RTN_EXIT :
+      case SBLOCK_ENTER :
+      case STACK_TRACE :
+      case THR_END :
+      case THR_FIRST_INSN :
+        buf.putInt((int) pc);
+      case RTN_CALL :
+        buf.putInt((int) tid);
+      default:
+        break;
+    }
+    commit();
+  }
+
+  public synchronized void writeCodePosition(long pc, String descr) {
+    if (closed) {
+      return;
+    }
+    counts[EventType.PC_DESCRIPTION.ordinal()]++;
+    byte[] utf = EventChunk.encodeUTF(descr);
+    ensure(1 + 4 + utf.length);
+    buf.put((byte) EventType.PC_DESCRIPTION.ordinal());
+    buf.putInt((int) pc);
+    buf.put(utf);
+    commit();
+  }
+
+  public synchronized void writeComment(String str, long pc) {
+    if (closed) {
+      return;
+    }
+    counts[EventType.PRINT_MESSAGE.ordinal()]++;
+    byte[] utf = EventChunk.encodeUTF(str);
+    ensure(1 + utf.length);
+    buf.put((byte) EventType.PRINT_MESSAGE.ordinal());
+    buf.put(utf);
+    commit();
+  }
+
+  /**
+   * Committed records already survive a crash of the process, forcing them
+   * to the disk makes them survive a crash of the machine as well.
+   */
+  public synchronized void flush() {
+    if (!closed) {
+      buf.force();
+    }
+  }
+
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    ensure(1 + 1 + 8 * counts.length);
+    buf.put((byte) TraceFormat.TRAILER);
+    buf.put((byte) counts.length);
+    for (long count : counts) {
+      buf.putLong(count);
+    }
+    commit();
+    buf.force();
+    truncate();
+  }
+
+  private void commit() {
+    buf.putLong(COMMITTED_OFFSET, buf.position() - HEADER_SIZE);
+  }
+
+  private void ensure(int size) {
+    if (buf.remaining() < size) {
+      if (HEADER_SIZE + size > segmentSize) {
+        throw new RuntimeException("Record of " + size + " bytes does not fit a segment of "
+            + segmentSize + " bytes");
+      }
+      truncate();
+      nextSegment();
+    }
+  }
+
+  // Cuts the current segment to its header and committed records. Nothing is
+  // written to the mapping past that point afterwards.
+  private void truncate() {
+    File f = segmentFile(baseName, segmentIndex);
+    try {
+      RandomAccessFile raf = new RandomAccessFile(f, "rw");
+      try {
+        raf.setLength(buf.position());
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Exception occurred when truncating trace segment " + f, e);
+    }
+  }
+
+  private void nextSegment() {
+    segmentIndex++;
+    File f = segmentFile(baseName, segmentIndex);
+    try {
+      RandomAccessFile raf = new RandomAccessFile(f, "rw");
+      try {
+        raf.setLength(0);
+        raf.setLength(segmentSize);
+        buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      } finally {
+        // The mapping stays valid after the channel is closed.
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Exception occurred when mapping trace segment " + f, e);
+    }
+    buf.put((byte) TraceFormat.MAGIC);
+    buf.put((byte) TraceFormat.VERSION_MAPPED);
+    buf.putInt(segmentIndex);
+    buf.putLong(0);
+  }
+}
@@ -37,4 +37,10 @@ public class NoneEventWriter implements EventWriter {
 
   public void writeComment(String str, long pc) {
   }
+
+  public void flush() {
+  }
+
+  public void close() {
+  }
 }
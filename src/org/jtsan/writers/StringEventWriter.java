@@ -30,6 +30,7 @@ public class StringEventWriter implements EventWriter {
   private PrintWriter out;
 
   public void setOutputStream(OutputStream outputStream) {
+    // Flushes every line, so the trace can be read while the program runs.
     out = new PrintWriter(outputStream, true);
   }
 
@@ -45,4 +46,12 @@ public class StringEventWriter implements EventWriter {
   public void writeComment(String str, long pc) {
     out.println("#> " + str);
   }
+
+  public void flush() {
+    out.flush();
+  }
+
+  public void close() {
+    out.close();
+  }
 }
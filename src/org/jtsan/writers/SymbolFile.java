@@ -0,0 +1,260 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Code positions kept apart from the events, which then carry only pcs. A
+ * position is a method, a source file and a line. Method and file names go
+ * to a string table once, a position refers to them by index:
+ *
+ *   [MAGIC][VERSION_SYMBOLS]
+ *   [STRING][UTF]                               takes the next string index
+ *   [POSITION][pc: int][method: int][file: int][line: int]
+ *
+ * The positions are also kept in memory, the description of a pc is only
+ * formatted when somebody asks for it.
+ */
+public class SymbolFile {
+
+  private static final int STRING = 1;
+
+  private static final int POSITION = 2;
+
+  private final DataOutputStream out;
+
+  private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+
+  private final List<String> strings = new ArrayList<String>();
+
+  // pc -> index in methods, files and lines, by open addressing. Pcs are
+  // spread over the whole int range, a table indexed by pc would be huge.
+  // Free slots hold -1.
+  private int[] pcs = new int[1024];
+
+  private int[] index = new int[1024];
+
+  private int[] methods = new int[1024];
+
+  private int[] files = new int[1024];
+
+  private int[] lines = new int[1024];
+
+  private int size;
+
+  private boolean closed;
+
+  /**
+   * Creates a table that writes positions to {@code out}, or keeps them in
+   * memory only if {@code out} is null.
+   */
+  public SymbolFile(OutputStream out) throws IOException {
+    Arrays.fill(pcs, -1);
+    if (out == null) {
+      this.out = null;
+      return;
+    }
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.writeByte(TraceFormat.MAGIC);
+    this.out.writeByte(TraceFormat.VERSION_SYMBOLS);
+  }
+
+  public synchronized void add(int pc, String method, String file, int line) {
+    if (pc < 0) {
+      return;
+    }
+    int methodId = intern(method);
+    int fileId = intern(file);
+    if (size == methods.length) {
+      methods = grow(methods, size * 2);
+      files = grow(files, size * 2);
+      lines = grow(lines, size * 2);
+    }
+    methods[size] = methodId;
+    files[size] = fileId;
+    lines[size] = line;
+    // A pc shared once pcs ran out keeps the last position.
+    int slot = slot(pc);
+    pcs[slot] = pc;
+    index[slot] = size++;
+    if (size * 2 > pcs.length) {
+      rehash();
+    }
+    if (out == null || closed) {
+      return;
+    }
+    try {
+      out.writeByte(POSITION);
+      out.writeInt(pc);
+      out.writeInt(methodId);
+      out.writeInt(fileId);
+      out.writeInt(line);
+    } catch (IOException e) {
+      throw new RuntimeException("Exception occurred during write code position " + pc, e);
+    }
+  }
+
+  /**
+   * Returns the description of {@code pc} as in "#PC" lines, or null.
+   */
+  public synchronized String describe(long pc) {
+    if (pc < 0 || pc > Integer.MAX_VALUE) {
+      return null;
+    }
+    int slot = slot((int) pc);
+    if (pcs[slot] == -1) {
+      return null;
+    }
+    int i = index[slot];
+    return strings.get(methods[i]) + " " + strings.get(files[i]) + " " + lines[i];
+  }
+
+  public synchronized void flush() {
+    if (out == null || closed) {
+      return;
+    }
+    try {
+      out.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("Exception occurred during flush of code positions", e);
+    }
+  }
+
+  public synchronized void close() {
+    if (out == null || closed) {
+      return;
+    }
+    closed = true;
+    try {
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Exception occurred during close of code positions", e);
+    }
+  }
+
+  /**
+   * Reads the positions written to {@code in}. A file cut short keeps the
+   * positions before the cut.
+   */
+  public static SymbolFile read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    SymbolFile symbols = new SymbolFile(null);
+    try {
+      if (data.readUnsignedByte() != TraceFormat.MAGIC
+          || data.readUnsignedByte() != TraceFormat.VERSION_SYMBOLS) {
+        throw new IOException("Not a symbol file");
+      }
+      while (true) {
+        int tag = data.readUnsignedByte();
+        if (tag == STRING) {
+          symbols.intern(data.readUTF());
+        } else if (tag == POSITION) {
+          int pc = data.readInt();
+          String method = symbols.strings.get(data.readInt());
+          String file = symbols.strings.get(data.readInt());
+          symbols.add(pc, method, file, data.readInt());
+        } else {
+          throw new IOException("Unexpected record " + tag + " in symbol file");
+        }
+      }
+    } catch (EOFException e) {
+      // End of file.
+    } finally {
+      data.close();
+    }
+    return symbols;
+  }
+
+  /**
+   * Returns the pcs with a position, in ascending order.
+   */
+  public synchronized int[] pcs() {
+    int[] sorted = new int[size];
+    int n = 0;
+    for (int pc : pcs) {
+      if (pc != -1) {
+        sorted[n++] = pc;
+      }
+    }
+    sorted = Arrays.copyOf(sorted, n);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  // The slot of pc, or the free slot it goes to.
+  private int slot(int pc) {
+    int mask = pcs.length - 1;
+    int h = pc * 0x9E3779B9;
+    int i = (h ^ (h >>> 16)) & mask;
+    while (pcs[i] != -1 && pcs[i] != pc) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void rehash() {
+    int[] oldPcs = pcs;
+    int[] oldIndex = index;
+    pcs = new int[oldPcs.length * 2];
+    index = new int[oldIndex.length * 2];
+    Arrays.fill(pcs, -1);
+    for (int j = 0; j < oldPcs.length; j++) {
+      if (oldPcs[j] != -1) {
+        int slot = slot(oldPcs[j]);
+        pcs[slot] = oldPcs[j];
+        index[slot] = oldIndex[j];
+      }
+    }
+  }
+
+  private int intern(String s) {
+    Integer id = stringIds.get(s);
+    if (id != null) {
+      return id;
+    }
+    id = strings.size();
+    stringIds.put(s, id);
+    strings.add(s);
+    if (out != null && !closed) {
+      try {
+        out.writeByte(STRING);
+        out.writeUTF(s);
+      } catch (IOException e) {
+        throw new RuntimeException("Exception occurred during write of symbol " + s, e);
+      }
+    }
+    return id;
+  }
+
+  private static int[] grow(int[] a, int length) {
+    int[] grown = new int[length];
+    System.arraycopy(a, 0, grown, 0, a.length);
+    return grown;
+  }
+}
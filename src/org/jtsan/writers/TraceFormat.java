@@ -0,0 +1,112 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jtsan.writers;
+
+import org.jtsan.EventType;
+
+/**
+ * Constants shared by the binary trace writers and {@code BinaryEventDecoder}.
+ *
+ * A plain binary record starts with the ordinal of its {@code EventType},
+ * followed by the fields the type needs, tids take 4 bytes. Every trace
+ * starts with {@code MAGIC} (never a valid ordinal) followed by a version
+ * byte, traces without the header are sequences of plain records with 2-byte
+ * tids written by older agents:
+ *
+ * VERSION_PLAIN: plain records.
+ *
+ * VERSION_CHUNKED: a sequence of chunks, each is
+ *   [writer id: int][chunk seq: int][start stamp: long][length: int][payload],
+ * where the payload holds plain records of a single writer thread, and each
+ * synchronization record carries a global stamp (long) right after its type
+ * byte. Chunks of the writer {@code SYMBOLS_WRITER_ID} hold code positions,
+ * the chunk of {@code TRAILER_WRITER_ID} holds the trailer.
+ *
+ * VERSION_MAPPED: a segment of {@code MappedEventWriter}, plain records follow
+ * the segment header.
+ *
+ * VERSION_COMPACT: chunks as in VERSION_CHUNKED holding compact (v2) records.
+ * A record starts with the type ordinal, the bit COMPACT_EXPLICIT_TID tells
+ * that a tid follows, otherwise the record belongs to the tid of the first
+ * record in the chunk. Then go the stamp, extra, address and pc, each present
+ * for the same types as in plain records. All numbers are varints, stamps are
+ * deltas from the previous stamp in the chunk (or the start stamp), addresses
+ * and pcs are zigzag-encoded deltas from the previous ones in the chunk.
+ *
+ * VERSION_COMPRESSED: blocks of {@code CompressingOutputStream}, which hold
+ * a trace of any other layout once decompressed.
+ *
+ * VERSION_SYMBOLS: not a trace but the code positions of one, written by
+ * {@code SymbolFile} when the agent is asked to keep them apart.
+ *
+ * A trace that was closed properly ends with a trailer record:
+ *   [TRAILER][number of types: byte][count of records: long]...
+ * with a count for every {@code EventType} ordinal, so that the decoder can
+ * tell a complete trace from a truncated one.
+ */
+public final class TraceFormat {
+
+  public static final int MAGIC = 0xFE;
+
+  public static final int VERSION_CHUNKED = 1;
+
+  public static final int VERSION_MAPPED = 2;
+
+  public static final int VERSION_COMPACT = 3;
+
+  public static final int VERSION_COMPRESSED = 4;
+
+  public static final int VERSION_PLAIN = 5;
+
+  public static final int VERSION_SYMBOLS = 6;
+
+  public static final int COMPACT_EXPLICIT_TID = 0x80;
+
+  public static final int SYMBOLS_WRITER_ID = -1;
+
+  public static final int TRAILER_WRITER_ID = -2;
+
+  // Never a valid ordinal either.
+  public static final int TRAILER = 0xFD;
+
+  public static final int TYPE_COUNT = EventType.values().length;
+
+  private TraceFormat() {
+  }
+
+  /**
+   * Returns true for events that order threads against each other. Only these
+   * events need a global stamp to put per-thread streams back in order.
+   */
+  public static boolean isStamped(EventType type) {
+    switch (type) {
+      // Ids of freed objects are given to new ones afterwards.
+      case FREE:
+      case READER_LOCK:
+      case SIGNAL:
+      case THR_END:
+      case THR_FIRST_INSN:
+      case THR_JOIN_AFTER:
+      case THR_START:
+      case UNLOCK:
+      case WAIT:
+      case WRITER_LOCK:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
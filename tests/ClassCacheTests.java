@@ -0,0 +1,212 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.jtsan.EventType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Tests of the class cache. Each test runs a test of EasyTests in child
+ * JVMs under the agent with the same cache directory, and counts the
+ * classes stored in it. A run that finds all its classes in the cache adds
+ * none, a run that may not use them adds its own. The cache is warmed by
+ * two runs first: the first one leaves out classes whose key changed while
+ * they were transformed, the second one finds the fields that changed them
+ * cached.
+ *
+ * The tests start the agent themselves, so they run without it, with the
+ * "cache" flag of TestRunner:
+ *   java -cp dist/agent.jar:dist/tests.jar TestRunner cache
+ */
+public class ClassCacheTests {
+
+  private static final String TEST = "filter=lockedWW";
+
+  private static File jarOf(Class<?> c) {
+    try {
+      return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+    } catch (URISyntaxException e) {
+      throw new RuntimeException("Cannot locate the jar of " + c, e);
+    }
+  }
+
+  private static File newDir() {
+    try {
+      File dir = File.createTempFile("jtsan-cache-test", "");
+      if (!dir.delete() || !dir.mkdir()) {
+        throw new IOException("cannot create " + dir);
+      }
+      return dir;
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot create a directory", e);
+    }
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        delete(f);
+      }
+    }
+    file.delete();
+  }
+
+  // Runs TEST under agent with the cache in dir, and returns the number of
+  // classes in the cache then.
+  private static int run(File agent, File dir, String options) {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+        + "java";
+    // Transformed classes have no stack map frames, newer class files need them.
+    ProcessBuilder pb = new ProcessBuilder(java, "-noverify",
+        "-Xbootclasspath/p:" + agent,
+        "-javaagent:" + agent + "=writer=none:logfile=" + new File(dir, "events")
+            + ":cache=" + new File(dir, "cache") + options,
+        "-cp", jarOf(ClassCacheTests.class).getPath(), "TestRunner", TEST);
+    pb.redirectErrorStream(true);
+    try {
+      Process p = pb.start();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      copy(p.getInputStream(), out);
+      if (p.waitFor() != 0) {
+        throw new RuntimeException("The agent run failed:\n" + out);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot run " + java, e);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("InterruptedException while running the agent", e);
+    }
+    String[] classes = new File(new File(dir, "cache"), "classes").list();
+    if (classes == null || classes.length == 0) {
+      throw new RuntimeException("No classes in the cache after the run");
+    }
+    return classes.length;
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buf = new byte[8192];
+    for (int n; (n = in.read(buf)) > 0; ) {
+      out.write(buf, 0, n);
+    }
+  }
+
+  // Copies the agent jar into dir, with one more class if changed.
+  private static File copyAgent(File dir, boolean changed) {
+    File copy = new File(dir, "agent.jar");
+    try {
+      JarFile jar = new JarFile(jarOf(EventType.class));
+      JarOutputStream out = new JarOutputStream(new FileOutputStream(copy));
+      try {
+        for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); ) {
+          JarEntry entry = e.nextElement();
+          out.putNextEntry(new JarEntry(entry.getName()));
+          InputStream in = jar.getInputStream(entry);
+          try {
+            copy(in, out);
+          } finally {
+            in.close();
+          }
+        }
+        if (changed) {
+          // Never loaded, the agent classes differ all the same.
+          out.putNextEntry(new JarEntry("org/jtsan/CacheTestMarker.class"));
+          out.write(new byte[] {(byte) 0xCA, (byte) 0xFE});
+        }
+      } finally {
+        out.close();
+        jar.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot copy the agent", e);
+    }
+    return copy;
+  }
+
+  private static int warm(File agent, File dir) {
+    run(agent, dir, "");
+    return run(agent, dir, "");
+  }
+
+  private static void expect(String what, boolean condition, int before, int after) {
+    if (!condition) {
+      throw new RuntimeException(what + ": " + before + " classes in the cache before the run, "
+          + after + " after");
+    }
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Second run with the same agent and options finds its classes cached")
+  public void cacheHit() {
+    File dir = newDir();
+    try {
+      File agent = jarOf(EventType.class);
+      int before = warm(agent, dir);
+      int after = run(agent, dir, "");
+      expect("Classes not found in the cache", after == before, before, after);
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Same agent classes found at another path use the cache")
+  public void cacheHitFromCopiedAgent() {
+    File dir = newDir();
+    try {
+      int before = warm(jarOf(EventType.class), dir);
+      int after = run(copyAgent(dir, false), dir, "");
+      expect("Classes not found in the cache", after == before, before, after);
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Run with other options does not use the cached classes")
+  public void cacheInvalidatedByOptions() {
+    File dir = newDir();
+    try {
+      File agent = jarOf(EventType.class);
+      int before = warm(agent, dir);
+      int after = run(agent, dir, ":sample=50");
+      expect("Cached classes used with other options", after > before, before, after);
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Run with changed agent classes does not use the cached classes")
+  public void cacheInvalidatedByAgent() {
+    File dir = newDir();
+    try {
+      int before = warm(jarOf(EventType.class), dir);
+      int after = run(copyAgent(dir, true), dir, "");
+      expect("Cached classes used by another agent", after > before, before, after);
+    } finally {
+      delete(dir);
+    }
+  }
+}
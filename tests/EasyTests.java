@@ -302,6 +302,41 @@ public class EasyTests {
     };
   }
 
+  @RaceTest(expectRace = true,
+      description = "Race with a joined thread whose tid is given to the next thread")
+  public void raceWithRecycledTid() {
+    new ThreadRunner(2) {
+      void startAndJoin(Thread child) {
+        child.start();
+        try {
+          child.join();
+        } catch (InterruptedException e) {
+          throw new RuntimeException("InterruptedException in raceWithRecycledTid() method ", e);
+        }
+        // Collected, so that the next thread started here gets its tid.
+        System.gc();
+      }
+
+      public void thread1() {
+        startAndJoin(new Thread() {
+          public void run() {
+            sharedVar = 1;
+          }
+        });
+        for (int i = 0; i < 4; i++) {
+          startAndJoin(new Thread());
+        }
+      }
+
+      public void thread2() {
+        for (int i = 0; i < 5; i++) {
+          longSleep();
+        }
+        sharedVar = 2;
+      }
+    };
+  }
+
   //------------------ Negative tests ---------------------
 
   @RaceTest(expectRace = false,
@@ -566,6 +601,82 @@ public class EasyTests {
     }
   }
 
+  @RaceTest(expectRace = false,
+      description = "Join the same thread from two threads, one after the other")
+  public void joinTwice() {
+    new ThreadRunner(2) {
+      Thread writer;
+
+      public void setUp() {
+        writer = new Thread() {
+          public void run() {
+            sharedVar = 1;
+          }
+        };
+        writer.start();
+      }
+
+      private void joinWriter() {
+        try {
+          writer.join();
+        } catch (InterruptedException e) {
+          throw new RuntimeException("InterruptedException in joinTwice() method ", e);
+        }
+      }
+
+      public void thread1() {
+        joinWriter();
+      }
+
+      public void thread2() {
+        longSleep();
+        joinWriter();
+        sharedVar++;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Threads started one after another by the joiner of the previous one")
+  public void recycledTids() {
+    new ThreadRunner(2) {
+      int other;
+
+      void startAndJoin(Thread child) {
+        child.start();
+        try {
+          child.join();
+        } catch (InterruptedException e) {
+          throw new RuntimeException("InterruptedException in recycledTids() method ", e);
+        }
+        // Collected, so that the next thread started here gets its tid.
+        System.gc();
+      }
+
+      public void thread1() {
+        for (int i = 0; i < 5; i++) {
+          startAndJoin(new Thread() {
+            public void run() {
+              sharedVar++;
+            }
+          });
+        }
+        sharedVar++;
+      }
+
+      public void thread2() {
+        for (int i = 0; i < 5; i++) {
+          startAndJoin(new Thread() {
+            public void run() {
+              other++;
+            }
+          });
+        }
+        other++;
+      }
+    };
+  }
+
   @RaceTest(expectRace = false,
       description = "Use System.arraycopy(). Different scopes.")
   public void systemArrayCopyDiff() {
@@ -0,0 +1,323 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Tests for accesses the agent leaves without events. Each negative test
+ * has a positive neighbour where the same pattern must still race.
+ */
+public class ElisionTests {
+
+  static class Box {
+    int value;
+  }
+
+  static class Point {
+    private int x;
+
+    Point(int x) {
+      this.x = x;
+    }
+
+    int x() {
+      return x;
+    }
+  }
+
+  static class Counter {
+    private int count;
+
+    void inc() {
+      count++;
+    }
+  }
+
+  static class Holder {
+    private int value;
+
+    class Setter {
+      void set(int value) {
+        Holder.this.value = value;
+      }
+    }
+
+    int get() {
+      return value;
+    }
+  }
+
+  static class Limits {
+    private static int max = 16;
+    private static int total;
+
+    static int max() {
+      return max;
+    }
+
+    static void add(int n) {
+      total += n;
+    }
+  }
+
+  //------------------ Positive tests ---------------------
+
+  @RaceTest(expectRace = true,
+      description = "Array written after it is published through a volatile")
+  public void escapingArray() {
+    new ThreadRunner(2) {
+      volatile int[] published;
+
+      public void thread1() {
+        int[] array = new int[1];
+        published = array;
+        array[0] = 1;
+      }
+
+      public void thread2() {
+        longSleep();
+        int[] array = published;
+        if (array != null) {
+          array[0]++;
+        }
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Object written after it is published through a volatile")
+  public void escapingObject() {
+    new ThreadRunner(2) {
+      volatile Box published;
+
+      public void thread1() {
+        Box box = new Box();
+        published = box;
+        box.value = 1;
+      }
+
+      public void thread2() {
+        longSleep();
+        Box box = published;
+        if (box != null) {
+          box.value++;
+        }
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Only the read repeated after a monitor exit races")
+  public void repeatedReadAcrossMonitor() {
+    new ThreadRunner(2) {
+      public void thread1() {
+        int before = sharedVar;
+        synchronized (monitor) {
+        }
+        int after = sharedVar;
+        sharedObject = before + after == 0 ? null : monitor;
+      }
+
+      public void thread2() {
+        longSleep();
+        synchronized (monitor) {
+        }
+        sharedVar = 1;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Only the read repeated after a call that exits a monitor races")
+  public void repeatedReadAcrossCall() {
+    new ThreadRunner(2) {
+      void release() {
+        synchronized (monitor) {
+        }
+      }
+
+      public void thread1() {
+        int before = sharedVar;
+        release();
+        int after = sharedVar;
+        sharedObject = before + after == 0 ? null : monitor;
+      }
+
+      public void thread2() {
+        longSleep();
+        release();
+        sharedVar = 1;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Private field written outside of constructors")
+  public void privateFieldWrittenByMethod() {
+    new ThreadRunner(2) {
+      Counter counter;
+
+      public void setUp() {
+        counter = new Counter();
+      }
+
+      public void thread1() {
+        counter.inc();
+      }
+
+      public void thread2() {
+        counter.inc();
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Private field written by an inner class, directly since Java 11")
+  public void privateFieldWrittenByNestmate() {
+    new ThreadRunner(2) {
+      Holder holder;
+
+      public void setUp() {
+        holder = new Holder();
+      }
+
+      public void thread1() {
+        holder.new Setter().set(1);
+      }
+
+      public void thread2() {
+        sharedVar = holder.get();
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Private static field written outside of the static initializer")
+  public void privateStaticFieldWrittenByMethod() {
+    new ThreadRunner(2) {
+      public void thread1() {
+        Limits.add(1);
+      }
+
+      public void thread2() {
+        Limits.add(2);
+      }
+    };
+  }
+
+  //------------------ Negative tests ---------------------
+
+  @RaceTest(expectRace = false,
+      description = "Each thread writes an array that does not escape")
+  public void localArray() {
+    new ThreadRunner(2) {
+      int fill() {
+        int[] array = new int[16];
+        for (int i = 0; i < array.length; i++) {
+          array[i] = i;
+        }
+        int sum = 0;
+        for (int i = 0; i < array.length; i++) {
+          sum += array[i];
+        }
+        return sum;
+      }
+
+      public void thread1() {
+        fill();
+      }
+
+      public void thread2() {
+        fill();
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Each thread writes an object that does not escape")
+  public void localObject() {
+    new ThreadRunner(2) {
+      int fill() {
+        Box box = new Box();
+        for (int i = 0; i < 16; i++) {
+          box.value += i;
+        }
+        return box.value;
+      }
+
+      public void thread1() {
+        fill();
+      }
+
+      public void thread2() {
+        fill();
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Repeated reads with no synchronization in between")
+  public void repeatedRead() {
+    new ThreadRunner(2) {
+      public void thread1() {
+        int before = sharedVar;
+        int after = sharedVar;
+        sharedObject = before + after == 0 ? null : monitor;
+      }
+
+      public void thread2() {
+        int before = sharedVar;
+        int after = sharedVar;
+        staticSharedVar = before + after;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Private field written only by its constructor")
+  public void effectivelyFinalPrivateField() {
+    new ThreadRunner(2) {
+      Point point;
+
+      public void setUp() {
+        point = new Point(1);
+      }
+
+      public void thread1() {
+        sharedVar = point.x();
+      }
+
+      public void thread2() {
+        sharedVolatile = point.x();
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Private static field written only by the static initializer")
+  public void effectivelyFinalPrivateStaticField() {
+    new ThreadRunner(2) {
+      public void setUp() {
+        Limits.max();
+      }
+
+      public void thread1() {
+        sharedVar = Limits.max();
+      }
+
+      public void thread2() {
+        sharedVolatile = Limits.max();
+      }
+    };
+  }
+}
@@ -29,6 +29,10 @@ import java.util.TreeMap;
  */
 public class MediumTests {
 
+  static class Cell {
+    int value;
+  }
+
   //------------------ Positive tests ---------------------
 
   @ExcludedTest(reason = "HashSet loads before instrumentation starts")
@@ -408,5 +412,38 @@ public class MediumTests {
     };
   }
 
+  @RaceTest(expectRace = false,
+      description = "Objects get the ids of collected objects written by another thread")
+  public void reusedObjectIds() {
+    new ThreadRunner(2) {
+      // Enough objects for their ids to be freed and reused in a batch.
+      static final int COUNT = 10000;
+
+      Cell[] first;
+      Cell[] second;
 
+      public void thread1() {
+        first = new Cell[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+          first[i] = new Cell();
+          first[i].value = i;
+        }
+        first = null;
+      }
+
+      public void thread2() {
+        // Sleeps only, so that nothing orders the two threads. The first
+        // one is done with its objects meanwhile.
+        for (int i = 0; i < 5; i++) {
+          longSleep();
+        }
+        System.gc();
+        second = new Cell[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+          second[i] = new Cell();
+          second[i].value = i;
+        }
+      }
+    };
+  }
 }
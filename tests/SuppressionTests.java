@@ -0,0 +1,208 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Tests for suppression and scope rules. They need the agent options
+ * suppress=tests/suppressions.txt:scope=tests/scope.txt and run alone with
+ * the "suppressions" flag of TestRunner. The races of the negative tests
+ * are covered by the rules, the positive tests race on neighbours the rules
+ * must not cover.
+ */
+public class SuppressionTests {
+
+  static class BenignCounter {
+    int hits;
+  }
+
+  static class Counter {
+    int hits;
+  }
+
+  static class ExcludedCounter {
+    int hits;
+
+    void inc() {
+      hits++;
+    }
+  }
+
+  static class Stats {
+    int updates;
+
+    void update() {
+      record();
+    }
+
+    void record() {
+      updates++;
+    }
+
+    void count() {
+      updates++;
+    }
+  }
+
+  static int[] newBenignArray() {
+    return new int[1];
+  }
+
+  static int[] newArray() {
+    return new int[1];
+  }
+
+  //------------------ Positive tests ---------------------
+
+  @RaceTest(expectRace = true,
+      description = "Field of a class next to the suppressed ones")
+  public void unsuppressedField() {
+    new ThreadRunner(2) {
+      Counter counter;
+
+      public void setUp() {
+        counter = new Counter();
+      }
+
+      public void thread1() {
+        counter.hits++;
+      }
+
+      public void thread2() {
+        counter.hits++;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Array allocated next to the suppressed allocation site")
+  public void unsuppressedArraySite() {
+    new ThreadRunner(2) {
+      int[] array;
+
+      public void setUp() {
+        array = newArray();
+      }
+
+      public void thread1() {
+        array[0]++;
+      }
+
+      public void thread2() {
+        array[0]++;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = true,
+      description = "Field of a suppressed frame accessed outside of it")
+  public void unsuppressedFrame() {
+    new ThreadRunner(2) {
+      Stats stats;
+
+      public void setUp() {
+        stats = new Stats();
+      }
+
+      public void thread1() {
+        stats.count();
+      }
+
+      public void thread2() {
+        stats.count();
+      }
+    };
+  }
+
+  //------------------ Negative tests ---------------------
+
+  @RaceTest(expectRace = false,
+      description = "Fields suppressed by a class prefix pattern")
+  public void suppressedField() {
+    new ThreadRunner(2) {
+      BenignCounter counter;
+
+      public void setUp() {
+        counter = new BenignCounter();
+      }
+
+      public void thread1() {
+        counter.hits++;
+      }
+
+      public void thread2() {
+        counter.hits++;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Array of a suppressed allocation site")
+  public void suppressedArraySite() {
+    new ThreadRunner(2) {
+      int[] array;
+
+      public void setUp() {
+        array = newBenignArray();
+      }
+
+      public void thread1() {
+        array[0]++;
+      }
+
+      public void thread2() {
+        array[0]++;
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Accesses while a suppressed method is on the stack")
+  public void suppressedFrame() {
+    new ThreadRunner(2) {
+      Stats stats;
+
+      public void setUp() {
+        stats = new Stats();
+      }
+
+      public void thread1() {
+        stats.update();
+      }
+
+      public void thread2() {
+        stats.update();
+      }
+    };
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Accesses of methods excluded by a class prefix scope rule")
+  public void excludedAccesses() {
+    new ThreadRunner(2) {
+      ExcludedCounter counter;
+
+      public void setUp() {
+        counter = new ExcludedCounter();
+      }
+
+      public void thread1() {
+        counter.inc();
+      }
+
+      public void thread2() {
+        counter.inc();
+      }
+    };
+  }
+}
@@ -31,6 +31,9 @@ public class TestRunner {
   private final String IGNORE_EXCLUDED_FLAG = "all";
   private final String IGNORE_EXPECTED_RACE_FLAG = "ignore_expected";
   private final String HIGH_LEVEL_DATA_RACES_ONLY_FLAG = "hldr";
+  private final String SUPPRESSIONS_ONLY_FLAG = "suppressions";
+  private final String WRITERS_ONLY_FLAG = "writers";
+  private final String CLASS_CACHE_ONLY_FLAG = "cache";
   protected PrintWriter out;
 
   private String regexp;
@@ -58,6 +61,7 @@ public class TestRunner {
     tests.add(new EasyTests());
     tests.add(new MediumTests());
     tests.add(new CustomTests());
+    tests.add(new ElisionTests());
     tests.add(new JUConcurrentTests());
   }
 
@@ -86,6 +90,18 @@ public class TestRunner {
           tests.clear();
           tests.add(new HighLevelDataRaceTests());
           out.println("High Level Data Races tests only");
+        } else if (s.equals(SUPPRESSIONS_ONLY_FLAG)) {
+          tests.clear();
+          tests.add(new SuppressionTests());
+          out.println("Suppression tests only");
+        } else if (s.equals(WRITERS_ONLY_FLAG)) {
+          tests.clear();
+          tests.add(new WriterTests());
+          out.println("Trace writer tests only");
+        } else if (s.equals(CLASS_CACHE_ONLY_FLAG)) {
+          tests.clear();
+          tests.add(new ClassCacheTests());
+          out.println("Class cache tests only");
         }
       }
     }
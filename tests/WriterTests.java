@@ -0,0 +1,305 @@
+/* Copyright (c) 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.jtsan.EventType;
+import org.jtsan.writers.AsyncEventWriter;
+import org.jtsan.writers.BinaryEventDecoder;
+import org.jtsan.writers.ChunkedEventWriter;
+import org.jtsan.writers.CompressingOutputStream;
+import org.jtsan.writers.EventWriter;
+import org.jtsan.writers.MappedEventWriter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+
+/**
+ * Round trips of the binary trace writers. Two threads write events into a
+ * writer, and the trace is decoded by BinaryEventDecoder. Each thread's
+ * reads and writes must come back in order, and its lock and unlock events
+ * must not interleave with those of the other thread. A mismatch fails the
+ * test with an exception.
+ *
+ * The writers run without the agent, with the "writers" flag of TestRunner:
+ *   java -cp dist/agent.jar:dist/tests.jar TestRunner writers
+ * Under the agent the JDK classes they use would be instrumented.
+ */
+public class WriterTests {
+
+  private static final int EVENTS = 20000;
+
+  // Lock events are written every LOCK_PERIOD accesses.
+  private static final int LOCK_PERIOD = 100;
+
+  private static final long LOCK = 7;
+
+  private static File newTrace() {
+    try {
+      File file = File.createTempFile("jtsan-writer-test", ".trace");
+      file.deleteOnExit();
+      return file;
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot create a trace file", e);
+    }
+  }
+
+  private static void open(EventWriter writer, File file) {
+    try {
+      writer.setOutputStream(new FileOutputStream(file));
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot open " + file, e);
+    }
+  }
+
+  // Compresses the trace with the compressor called name in agent options.
+  private static void open(EventWriter writer, File file, String compressor) {
+    try {
+      writer.setOutputStream(new CompressingOutputStream(new FileOutputStream(file),
+          CompressingOutputStream.newCompressor(compressor)));
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot open " + file, e);
+    }
+  }
+
+  // Thread tid writes access k with pc k and an address made of tid and k.
+  private static void write(EventWriter writer, Object monitor, int tid, int k) {
+    writer.writeEvent(k % 2 == 0 ? EventType.READ : EventType.WRITE,
+        tid, k, ((long) tid << 32) | k, 0);
+    if (k % LOCK_PERIOD == 0) {
+      synchronized (monitor) {
+        writer.writeEvent(EventType.WRITER_LOCK, tid, k, LOCK, 0);
+        writer.writeEvent(EventType.UNLOCK, tid, k, LOCK, 0);
+      }
+    }
+  }
+
+  private static void writeAll(final EventWriter writer) {
+    new ThreadRunner(2) {
+      public void thread1() {
+        for (int k = 0; k < EVENTS; k++) {
+          write(writer, monitor, 1, k);
+        }
+      }
+
+      public void thread2() {
+        for (int k = 0; k < EVENTS; k++) {
+          write(writer, monitor, 2, k);
+        }
+      }
+    };
+    writer.close();
+  }
+
+  private static BinaryEventDecoder newDecoder(File file, ByteArrayOutputStream out) {
+    try {
+      return new BinaryEventDecoder(file, out);
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot decode " + file, e);
+    }
+  }
+
+  // Decodes a trace that must have all the records its trailer counts.
+  private static String decode(File file) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEventDecoder decoder = newDecoder(file, out);
+    decoder.decode();
+    if (!decoder.isComplete()) {
+      throw new RuntimeException("The trailer does not match " + file);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Checks the decoded events of threads 1 and 2. With {@code all} each of
+   * them must have written EVENTS accesses, otherwise any prefix of them.
+   */
+  private static void verify(String trace, boolean all) {
+    int[] next = new int[3];
+    long holder = -1;
+    try {
+      BufferedReader in = new BufferedReader(new StringReader(trace));
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] f = line.split(" ");
+        if (f[0].startsWith("#")) {
+          continue;
+        }
+        EventType type = EventType.valueOf(f[0]);
+        int tid = Integer.parseInt(f[1], 16);
+        long pc = Long.parseLong(f[2], 16);
+        long address = Long.parseLong(f[3], 16);
+        if (tid != 1 && tid != 2) {
+          throw new RuntimeException("Unexpected tid in " + line);
+        }
+        if (type == EventType.WRITER_LOCK) {
+          if (holder != -1 || address != LOCK) {
+            throw new RuntimeException("Lock events interleave at " + line);
+          }
+          holder = tid;
+        } else if (type == EventType.UNLOCK) {
+          if (holder != tid || address != LOCK) {
+            throw new RuntimeException("Lock events interleave at " + line);
+          }
+          holder = -1;
+        } else {
+          int k = next[tid]++;
+          EventType expected = k % 2 == 0 ? EventType.READ : EventType.WRITE;
+          if (type != expected || pc != k || address != (((long) tid << 32) | k)) {
+            throw new RuntimeException("Expected access " + k + " of thread " + tid
+                + ", decoded " + line);
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (all && (next[1] != EVENTS || next[2] != EVENTS)) {
+      throw new RuntimeException("Decoded " + next[1] + " and " + next[2]
+          + " accesses of " + EVENTS);
+    }
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Chunked trace decodes to the events written")
+  public void chunkedRoundTrip() {
+    File file = newTrace();
+    EventWriter writer = new ChunkedEventWriter();
+    open(writer, file);
+    writeAll(writer);
+    verify(decode(file), true);
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Chunked trace closed while threads write decodes to whole records")
+  public void chunkedCloseWhileWriting() {
+    File file = newTrace();
+    final EventWriter writer = new ChunkedEventWriter();
+    open(writer, file);
+    new ThreadRunner(3) {
+      volatile boolean closed;
+
+      public void thread1() {
+        for (int k = 0; !closed; k++) {
+          write(writer, monitor, 1, k);
+        }
+      }
+
+      public void thread2() {
+        for (int k = 0; !closed; k++) {
+          write(writer, monitor, 2, k);
+        }
+      }
+
+      public void thread3() {
+        shortSleep();
+        writer.close();
+        closed = true;
+      }
+    };
+    verify(decode(file), false);
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Compact chunked trace decodes to the events written")
+  public void compactRoundTrip() {
+    File file = newTrace();
+    EventWriter writer = new ChunkedEventWriter(true);
+    open(writer, file);
+    writeAll(writer);
+    verify(decode(file), true);
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Mapped trace spread over segments decodes to the events written")
+  public void mappedRoundTrip() {
+    File file = newTrace();
+    // Small segments, so that the trace spans several of them.
+    EventWriter writer = new MappedEventWriter(file.getPath(), 64 * 1024);
+    // The stream is not used, segments are mapped by name.
+    writer.setOutputStream(null);
+    writeAll(writer);
+    if (!MappedEventWriter.segmentFile(file.getPath(), 1).exists()) {
+      throw new RuntimeException("The trace fits in one segment");
+    }
+    try {
+      verify(decode(file), true);
+    } finally {
+      for (int i = 1; MappedEventWriter.segmentFile(file.getPath(), i).delete(); i++) {
+      }
+    }
+  }
+
+  @RaceTest(expectRace = false,
+      description = "LZ4 compressed trace decodes to the events written")
+  public void lz4RoundTrip() {
+    File file = newTrace();
+    EventWriter writer = new ChunkedEventWriter(true);
+    open(writer, file, "lz4");
+    writeAll(writer);
+    verify(decode(file), true);
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Deflate compressed trace decodes to the events written")
+  public void deflateRoundTrip() {
+    File file = newTrace();
+    EventWriter writer = new ChunkedEventWriter();
+    open(writer, file, "deflate");
+    writeAll(writer);
+    verify(decode(file), true);
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Trace written through a small blocking ring decodes to the events written")
+  public void asyncRoundTrip() {
+    File file = newTrace();
+    // A small ring, so that producers wait for the consumer.
+    EventWriter writer = new AsyncEventWriter(new ChunkedEventWriter(),
+        AsyncEventWriter.Policy.BLOCK, 256);
+    open(writer, file);
+    writeAll(writer);
+    verify(decode(file), true);
+  }
+
+  @RaceTest(expectRace = false,
+      description = "Trace cut short fails trailer verification")
+  public void truncatedTrace() {
+    File file = newTrace();
+    EventWriter writer = new ChunkedEventWriter();
+    open(writer, file);
+    writeAll(writer);
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(raf.length() / 2);
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot truncate " + file, e);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEventDecoder decoder = newDecoder(file, out);
+    decoder.decode();
+    if (decoder.isComplete()) {
+      throw new RuntimeException("Truncated trace " + file + " verified as complete");
+    }
+    verify(out.toString(), false);
+  }
+}